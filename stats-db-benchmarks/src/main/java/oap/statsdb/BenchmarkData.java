@@ -0,0 +1,76 @@
+package oap.statsdb;
+
+import oap.statsdb.RemoteStatsDB.Sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static oap.statsdb.NodeSchema.nc;
+
+/**
+ * Schemas, key sets and payloads shared by the benchmarks.
+ * <p>
+ * Key paths spread over {@link #ROOTS} root keys, every deeper level is unique per path, so
+ * {@code cardinality} is exactly the number of distinct leaves.
+ */
+public final class BenchmarkData {
+    public static final int ROOTS = 16;
+    public static final Consumer<BenchmarkValue> INCREMENT = v -> v.count++;
+    public static final Consumer<LongCounter> COUNTER_INCREMENT = LongCounter::increment;
+
+    private BenchmarkData() {
+    }
+
+    public static NodeSchema schema( int depth ) {
+        var confs = new ArrayList<NodeSchema.NodeConfiguration<? extends Node.Value>>();
+        for( var i = 0; i < depth; i++ ) confs.add( nc( "l" + i, BenchmarkValue.class, new BenchmarkValue.Serializer() ) );
+
+        return new NodeSchema( confs );
+    }
+
+    /**
+     * {@link LongCounter} on every level, updated without the node monitor
+     */
+    public static NodeSchema counterSchema( int depth ) {
+        var confs = new ArrayList<NodeSchema.NodeConfiguration<? extends Node.Value>>();
+        for( var i = 0; i < depth; i++ ) confs.add( nc( "l" + i, LongCounter.class, new LongCounter.Serializer() ) );
+
+        return new NodeSchema( confs );
+    }
+
+    public static String[][] keys( int cardinality, int depth ) {
+        var keys = new String[cardinality][];
+
+        for( var i = 0; i < cardinality; i++ ) {
+            var key = new String[depth];
+            key[0] = "r" + ( i % ROOTS );
+            for( var l = 1; l < depth; l++ ) key[l] = "l" + l + "-" + i;
+            keys[i] = key;
+        }
+
+        return keys;
+    }
+
+    public static Sync sync( int cardinality, int depth ) {
+        var data = new ArrayList<Sync.NodeIdNode>( cardinality );
+
+        for( var key : keys( cardinality, depth ) ) {
+            data.add( new Sync.NodeIdNode( new NodeId( key ), new Node( new BenchmarkValue( 1 ) ) ) );
+        }
+
+        return new Sync( data, "benchmark" );
+    }
+
+    public static Map<String, Node> tree( int cardinality, int depth ) {
+        var db = new HashMap<String, Node>();
+
+        for( var key : keys( cardinality, depth ) ) {
+            var node = db.computeIfAbsent( key[0], k -> new Node( new BenchmarkValue( 1 ) ) );
+            for( var i = 1; i < key.length; i++ ) node = node.child( key[i], k -> new Node( new BenchmarkValue( 1 ) ) );
+        }
+
+        return db;
+    }
+}
@@ -0,0 +1,72 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.util.List;
+
+/**
+ * Counter used on every level of the benchmark schemas. Inner levels aggregate the children, so the
+ * master benchmarks pay the same {@link Node.Container} cost as a production tree.
+ */
+@ToString
+@EqualsAndHashCode
+public class BenchmarkValue implements Node.Container<BenchmarkValue, BenchmarkValue> {
+    @Serial
+    private static final long serialVersionUID = -3021645383624476221L;
+
+    public long count;
+    @JsonIgnore
+    public long sum;
+
+    public BenchmarkValue() {
+    }
+
+    public BenchmarkValue( long count ) {
+        this.count = count;
+    }
+
+    @Override
+    public BenchmarkValue merge( BenchmarkValue other ) {
+        count += other.count;
+
+        return this;
+    }
+
+    @Override
+    public BenchmarkValue copy() {
+        var copy = new BenchmarkValue( count );
+        copy.sum = sum;
+
+        return copy;
+    }
+
+    @Override
+    public BenchmarkValue aggregate( List<BenchmarkValue> children ) {
+        var sum = 0L;
+        for( var child : children ) sum += child.count;
+        this.sum = sum;
+
+        return this;
+    }
+
+    public static class Serializer implements ValueSerializer<BenchmarkValue> {
+        @Serial
+        private static final long serialVersionUID = 2787017212164624577L;
+
+        @Override
+        public void write( DataOutput out, BenchmarkValue value ) throws IOException {
+            Varints.writeVarLong( out, value.count );
+        }
+
+        @Override
+        public BenchmarkValue read( DataInput in ) throws IOException {
+            return new BenchmarkValue( Varints.readVarLong( in ) );
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package oap.statsdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StatsDBMaster#update(RemoteStatsDB.Sync, String)}: merge of a {@code cardinality} nodes sync into the master tree
+ * including aggregation of the containers on the merged paths.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class StatsDBMasterBenchmark {
+    @Param( { "1000", "100000" } )
+    public int cardinality;
+    @Param( { "2", "3" } )
+    public int depth;
+    @Param( { "1", "4" } )
+    public int mergeThreads;
+
+    private StatsDBMaster master;
+    private RemoteStatsDB.Sync sync;
+    private BinarySyncCodec codec;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        master = new StatsDBMaster( BenchmarkData.schema( depth ), StatsDBStorage.NULL, mergeThreads );
+        sync = BenchmarkData.sync( cardinality, depth );
+        codec = new BinarySyncCodec( BenchmarkData.schema( depth ) );
+        data = codec.encode( sync );
+    }
+
+    @TearDown
+    public void tearDown() {
+        master.close();
+    }
+
+    @Benchmark
+    public boolean update() {
+        return master.update( sync, "host" );
+    }
+
+    /**
+     * listener path, decode and merge of the binary payload
+     */
+    @Benchmark
+    public boolean updateStreaming() {
+        return master.update( codec, data, "host" );
+    }
+
+    /**
+     * merge while a report holds a {@link ReadView}, a view per sync: every node written is copied once
+     */
+    @Benchmark
+    public boolean updateWithView() {
+        try( var view = master.view() ) {
+            return master.update( sync, "host" );
+        }
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public boolean updateConcurrentHosts( Host host ) {
+        return master.update( sync, host.name );
+    }
+
+    @State( Scope.Thread )
+    public static class Host {
+        public String name;
+
+        @Setup
+        public void setup( ThreadParams params ) {
+            name = "host-" + params.getThreadIndex();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package oap.statsdb;
+
+import oap.util.Cuid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StatsDBNode#sync()} of {@code cardinality} pending nodes, the transport only keeps the last {@link RemoteStatsDB.Sync}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class StatsDBNodeSyncBenchmark {
+    @Param( { "1000", "100000" } )
+    public int cardinality;
+    @Param( { "1", "3" } )
+    public int depth;
+    @Param( { "1", "16" } )
+    public int stripes;
+
+    private StatsDBNode node;
+    private String[][] keys;
+    private RemoteStatsDB.Sync last;
+
+    @Setup
+    public void setup() {
+        node = new StatsDBNode( BenchmarkData.schema( depth ), sync -> last = sync, Cuid.UNIQUE, stripes );
+        keys = BenchmarkData.keys( cardinality, depth );
+    }
+
+    @Setup( Level.Invocation )
+    public void fill() {
+        for( var key : keys ) node.update( key, BenchmarkData.INCREMENT );
+    }
+
+    @Benchmark
+    public RemoteStatsDB.Sync sync() {
+        node.sync();
+
+        return last;
+    }
+}
@@ -0,0 +1,86 @@
+package oap.statsdb;
+
+import oap.util.Cuid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StatsDBNode#update(String[], java.util.function.Consumer)} from all available cores.
+ * {@code cardinality = 1} is the single hot key case, every thread hits the same node. {@code updateBound} goes through
+ * {@link NodeHandle}s bound in advance, {@code updateCounter} updates {@link LongCounter}s without the node monitor.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( Threads.MAX )
+public class StatsDBNodeUpdateBenchmark {
+    @Param( { "1", "1000", "100000" } )
+    public int cardinality;
+    @Param( { "1", "3" } )
+    public int depth;
+    @Param( { "1", "16" } )
+    public int stripes;
+
+    private StatsDBNode node;
+    private StatsDBNode counterNode;
+    private String[][] keys;
+    private NodeHandle<BenchmarkValue>[] handles;
+
+    @Setup
+    @SuppressWarnings( "unchecked" )
+    public void setup() {
+        node = new StatsDBNode( BenchmarkData.schema( depth ), sync -> {}, Cuid.UNIQUE, stripes );
+        counterNode = new StatsDBNode( BenchmarkData.counterSchema( depth ), sync -> {}, Cuid.UNIQUE, stripes );
+        keys = BenchmarkData.keys( cardinality, depth );
+        handles = new NodeHandle[keys.length];
+        for( var i = 0; i < keys.length; i++ ) handles[i] = node.bind( keys[i] );
+    }
+
+    @Benchmark
+    public void update( Cursor cursor ) {
+        node.update( keys[cursor.next( keys.length )], BenchmarkData.INCREMENT );
+    }
+
+    @Benchmark
+    public void updateCounter( Cursor cursor ) {
+        counterNode.update( keys[cursor.next( keys.length )], BenchmarkData.COUNTER_INCREMENT );
+    }
+
+    @Benchmark
+    public void updateBound( Cursor cursor ) {
+        handles[cursor.next( handles.length )].update( BenchmarkData.INCREMENT );
+    }
+
+    @State( Scope.Thread )
+    public static class Cursor {
+        private int position;
+
+        @Setup
+        public void setup( ThreadParams params ) {
+            position = params.getThreadIndex() * 7919;
+        }
+
+        int next( int size ) {
+            position++;
+            if( position >= size ) position %= size;
+
+            return position;
+        }
+    }
+}
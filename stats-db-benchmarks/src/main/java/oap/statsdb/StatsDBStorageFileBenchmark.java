@@ -0,0 +1,67 @@
+package oap.statsdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot store and memory mapped load of the whole tree.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class StatsDBStorageFileBenchmark {
+    @Param( { "10000", "1000000" } )
+    public int cardinality;
+    @Param( { "2", "3" } )
+    public int depth;
+
+    private Path directory;
+    private StatsDBStorageFile storage;
+    private NodeSchema schema;
+    private Map<String, Node> db;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory( "statsdb-benchmark" );
+        storage = new StatsDBStorageFile( directory.resolve( "snapshot" ) );
+        schema = BenchmarkData.schema( depth );
+        db = BenchmarkData.tree( cardinality, depth );
+
+        storage.store( schema, db );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.removeAll();
+        Files.deleteIfExists( directory );
+    }
+
+    @Benchmark
+    public void store() {
+        storage.store( schema, db );
+    }
+
+    @Benchmark
+    public Map<String, Node> load() {
+        return storage.load( schema );
+    }
+}
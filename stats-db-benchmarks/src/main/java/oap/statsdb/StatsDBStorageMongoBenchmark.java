@@ -0,0 +1,75 @@
+package oap.statsdb;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tree walk of {@link StatsDBStorageMongo#store(NodeSchema, Map)}. Bulks go to a {@link Blackhole} instead of the
+ * collection, the mongo client is created lazily and never connects, so no server is required.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class StatsDBStorageMongoBenchmark {
+    @Param( { "10000", "100000" } )
+    public int cardinality;
+    @Param( { "2", "3" } )
+    public int depth;
+
+    private MongoClient mongoClient;
+    private StatsDBStorageMongo storage;
+    private NodeSchema schema;
+    private Map<String, Node> db;
+    /**
+     * every 100th leaf
+     */
+    private List<NodeId> modified;
+
+    @Setup
+    public void setup() {
+        mongoClient = MongoClients.create( "mongodb://localhost:27017" );
+        storage = new StatsDBStorageMongo( mongoClient.getDatabase( "statsdb-benchmark" ).getCollection( "stats", MongoNode.class ) );
+        schema = BenchmarkData.schema( depth );
+        db = BenchmarkData.tree( cardinality, depth );
+
+        modified = new ArrayList<>();
+        var keys = BenchmarkData.keys( cardinality, depth );
+        for( var i = 0; i < keys.length; i += 100 ) modified.add( new NodeId( keys[i] ) );
+    }
+
+    @TearDown
+    public void tearDown() {
+        mongoClient.close();
+    }
+
+    @Benchmark
+    public int store( Blackhole blackhole ) {
+        return storage.store( schema, db, blackhole::consume );
+    }
+
+    @Benchmark
+    public int storeModified( Blackhole blackhole ) {
+        return storage.store( schema, db, modified, blackhole::consume );
+    }
+}
@@ -0,0 +1,54 @@
+package oap.statsdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode of a {@code cardinality} nodes {@link RemoteStatsDB.Sync} with json and {@link BinarySyncCodec}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SyncCodecBenchmark {
+    @Param( { "1000", "100000" } )
+    public int cardinality;
+    @Param( { "3" } )
+    public int depth;
+    @Param( { "json", "binary" } )
+    public String codec;
+
+    private SyncCodec syncCodec;
+    private RemoteStatsDB.Sync sync;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        syncCodec = "json".equals( codec ) ? SyncCodec.JSON : new BinarySyncCodec( BenchmarkData.schema( depth ) );
+        sync = BenchmarkData.sync( cardinality, depth );
+        data = syncCodec.encode( sync );
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return syncCodec.encode( sync );
+    }
+
+    @Benchmark
+    public RemoteStatsDB.Sync decode() {
+        return syncCodec.decode( data );
+    }
+}
@@ -0,0 +1,254 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import lombok.SneakyThrows;
+import oap.json.Binder;
+import oap.json.TypeIdFactory;
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes {@link MongoNode} straight from/to BSON, the document layout is the one jackson produces:
+ * {@code {_id: {<level key>: <key>, ...}, n: {db: {}, v: {"o:t": <type id>, ...}, ct: <ct>, mt: <mt>}}}.
+ * <p>
+ * Values with a {@link BsonValueMapping} are written by it, the other ones are streamed through jackson tokens without
+ * a json string or a {@link org.bson.Document} in between.
+ */
+class BsonNodeCodec implements Codec<MongoNode> {
+    private static final String TYPE_ID = "o:t";
+
+    private final Map<Class<?>, BsonValueMapping<?>> mappings;
+    private final ObjectMapper mapper;
+
+    BsonNodeCodec( Map<Class<?>, BsonValueMapping<?>> mappings ) {
+        this.mappings = mappings;
+        this.mapper = Binder.json.getMapper();
+    }
+
+    @Override
+    public void encode( BsonWriter writer, MongoNode data, EncoderContext encoderContext ) {
+        writer.writeStartDocument();
+
+        writer.writeStartDocument( "_id" );
+        data._id.forEach( writer::writeString );
+        writer.writeEndDocument();
+
+        var node = data.n;
+        writer.writeStartDocument( "n" );
+        writer.writeStartDocument( "db" );
+        writer.writeEndDocument();
+        if( node.v != null ) {
+            writer.writeStartDocument( "v" );
+            writeValue( writer, node.v );
+            writer.writeEndDocument();
+        }
+        writer.writeInt64( "ct", node.ct );
+        writer.writeInt64( "mt", node.mt );
+        writer.writeEndDocument();
+
+        writer.writeEndDocument();
+    }
+
+    @SneakyThrows
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private void writeValue( BsonWriter writer, Node.Value value ) {
+        writer.writeString( TYPE_ID, TypeIdFactory.get( value.getClass() ) );
+
+        BsonValueMapping mapping = mappings.get( value.getClass() );
+        if( mapping != null ) {
+            mapping.write( writer, value );
+            return;
+        }
+
+        var tokens = new TokenBuffer( mapper, false );
+        mapper.writeValue( tokens, value );
+        try( var parser = tokens.asParser() ) {
+            parser.nextToken();
+            while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+                writer.writeName( parser.currentName() );
+                parser.nextToken();
+                write( parser, writer );
+            }
+        }
+    }
+
+    private static void write( JsonParser parser, BsonWriter writer ) throws IOException {
+        var token = parser.currentToken();
+        switch( token ) {
+            case START_OBJECT -> {
+                writer.writeStartDocument();
+                while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+                    writer.writeName( parser.currentName() );
+                    parser.nextToken();
+                    write( parser, writer );
+                }
+                writer.writeEndDocument();
+            }
+            case START_ARRAY -> {
+                writer.writeStartArray();
+                while( parser.nextToken() != JsonToken.END_ARRAY ) write( parser, writer );
+                writer.writeEndArray();
+            }
+            case VALUE_STRING -> writer.writeString( parser.getText() );
+            case VALUE_NUMBER_INT -> {
+                switch( parser.getNumberType() ) {
+                    case INT -> writer.writeInt32( parser.getIntValue() );
+                    case LONG -> writer.writeInt64( parser.getLongValue() );
+                    default -> writer.writeDouble( parser.getDoubleValue() );
+                }
+            }
+            case VALUE_NUMBER_FLOAT -> writer.writeDouble( parser.getDoubleValue() );
+            case VALUE_TRUE, VALUE_FALSE -> writer.writeBoolean( parser.getBooleanValue() );
+            case VALUE_NULL -> writer.writeNull();
+            case VALUE_EMBEDDED_OBJECT -> writer.writeBinaryData( new BsonBinary( parser.getBinaryValue() ) );
+            default -> throw new IllegalStateException( "unexpected token " + token );
+        }
+    }
+
+    @Override
+    public MongoNode decode( BsonReader reader, DecoderContext decoderContext ) {
+        Map<String, String> id = null;
+        Node node = null;
+
+        reader.readStartDocument();
+        while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) {
+            switch( reader.readName() ) {
+                case "_id" -> id = readId( reader );
+                case "n" -> node = readNode( reader );
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return new MongoNode( id, node );
+    }
+
+    private static Map<String, String> readId( BsonReader reader ) {
+        var id = new LinkedHashMap<String, String>();
+
+        reader.readStartDocument();
+        while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) id.put( reader.readName(), reader.readString() );
+        reader.readEndDocument();
+
+        return id;
+    }
+
+    /**
+     * stored nodes never have children, {@code db} is skipped
+     */
+    private Node readNode( BsonReader reader ) {
+        long ct = 0;
+        long mt = 0;
+        Node.Value value = null;
+
+        reader.readStartDocument();
+        while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) {
+            switch( reader.readName() ) {
+                case "v" -> value = readValue( reader );
+                case "ct" -> ct = readLong( reader );
+                case "mt" -> mt = readLong( reader );
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return new Node( mt, ct, value );
+    }
+
+    private static long readLong( BsonReader reader ) {
+        return switch( reader.getCurrentBsonType() ) {
+            case INT32 -> reader.readInt32();
+            case INT64 -> reader.readInt64();
+            case DOUBLE -> ( long ) reader.readDouble();
+            default -> throw new IllegalStateException( "number expected, but " + reader.getCurrentBsonType() );
+        };
+    }
+
+    @SneakyThrows
+    private Node.Value readValue( BsonReader reader ) {
+        if( reader.getCurrentBsonType() == BsonType.NULL ) {
+            reader.readNull();
+            return null;
+        }
+
+        reader.readStartDocument();
+
+        if( reader.readBsonType() == BsonType.END_OF_DOCUMENT || !TYPE_ID.equals( reader.readName() ) )
+            throw new IllegalStateException( "value must start with '" + TYPE_ID + "'" );
+        var clazz = TypeIdFactory.get( reader.readString() );
+
+        Node.Value value;
+        var mapping = mappings.get( clazz );
+        if( mapping != null ) value = mapping.read( reader );
+        else {
+            var tokens = new TokenBuffer( mapper, false );
+            tokens.writeStartObject();
+            while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) {
+                tokens.writeFieldName( reader.readName() );
+                write( reader, tokens );
+            }
+            tokens.writeEndObject();
+
+            try( var parser = tokens.asParser() ) {
+                value = ( Node.Value ) mapper.readValue( parser, clazz );
+            }
+        }
+
+        reader.readEndDocument();
+
+        return value;
+    }
+
+    private static void write( BsonReader reader, JsonGenerator generator ) throws IOException {
+        var type = reader.getCurrentBsonType();
+        switch( type ) {
+            case DOCUMENT -> {
+                reader.readStartDocument();
+                generator.writeStartObject();
+                while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) {
+                    generator.writeFieldName( reader.readName() );
+                    write( reader, generator );
+                }
+                generator.writeEndObject();
+                reader.readEndDocument();
+            }
+            case ARRAY -> {
+                reader.readStartArray();
+                generator.writeStartArray();
+                while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) write( reader, generator );
+                generator.writeEndArray();
+                reader.readEndArray();
+            }
+            case STRING -> generator.writeString( reader.readString() );
+            case INT32 -> generator.writeNumber( reader.readInt32() );
+            case INT64 -> generator.writeNumber( reader.readInt64() );
+            case DOUBLE -> generator.writeNumber( reader.readDouble() );
+            case BOOLEAN -> generator.writeBoolean( reader.readBoolean() );
+            case DATE_TIME -> generator.writeNumber( reader.readDateTime() );
+            case BINARY -> generator.writeBinary( reader.readBinaryData().getData() );
+            case NULL -> {
+                reader.readNull();
+                generator.writeNull();
+            }
+            default -> throw new IllegalStateException( "unsupported bson type " + type );
+        }
+    }
+
+    @Override
+    public Class<MongoNode> getEncoderClass() {
+        return MongoNode.class;
+    }
+}
@@ -0,0 +1,19 @@
+package oap.statsdb;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+
+/**
+ * Fields of a value class written straight to the value document, after its type id.
+ *
+ * @see StatsDBStorageMongo#StatsDBStorageMongo(oap.storage.mongo.MongoClient, String, java.util.Map)
+ */
+public interface BsonValueMapping<T extends Node.Value<T>> {
+    void write( BsonWriter writer, T value );
+
+    /**
+     * Reads the remaining fields of the value document, the end of the document is read by the caller.
+     * Unknown fields should be skipped.
+     */
+    T read( BsonReader reader );
+}
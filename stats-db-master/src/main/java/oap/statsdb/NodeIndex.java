@@ -0,0 +1,40 @@
+package oap.statsdb;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Paths of the nodes of one level by their key, maintained by {@link StatsDBMaster} as nodes are created and evicted.
+ *
+ * @see NodeSchema.NodeConfiguration#indexed()
+ */
+final class NodeIndex {
+    private final ConcurrentHashMap<String, Set<NodeId>> paths = new ConcurrentHashMap<>();
+
+    void add( String key, NodeId path ) {
+        paths.compute( key, ( k, set ) -> {
+            if( set == null ) set = ConcurrentHashMap.newKeySet();
+            set.add( path );
+
+            return set;
+        } );
+    }
+
+    void remove( String key, NodeId path ) {
+        paths.computeIfPresent( key, ( k, set ) -> {
+            set.remove( path );
+
+            return set.isEmpty() ? null : set;
+        } );
+    }
+
+    Set<NodeId> get( String key ) {
+        var set = paths.get( key );
+
+        return set != null ? Set.copyOf( set ) : Set.of();
+    }
+
+    void clear() {
+        paths.clear();
+    }
+}
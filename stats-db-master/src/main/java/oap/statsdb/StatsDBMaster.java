@@ -24,138 +24,786 @@
 
 package oap.statsdb;
 
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import oap.statsdb.RemoteStatsDB.Sync;
 import oap.util.Lists;
+import org.joda.time.DateTimeUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Slf4j
 public class StatsDBMaster extends StatsDB implements Closeable, Runnable {
     private final StatsDBStorage storage;
+    /**
+     * {@code null} - merge on the caller thread
+     */
+    private final ForkJoinPool mergePool;
+    /**
+     * nodes of a sync buffered before they are merged, one task per root key
+     */
+    public int mergeBatchSize = 4096;
+    /**
+     * paths updated since the last store
+     */
+    private final Set<NodeId> modified = ConcurrentHashMap.newKeySet();
+    /**
+     * {@code null} - no log, syncs merged after the last store are lost on a crash
+     */
+    private final StatsDBWal wal;
+    /**
+     * syncs are appended and merged under the read lock, the log is rotated and read views are opened under the write
+     * lock, so a rotated segment never holds a sync that is not merged yet and a view never sees half of a sync
+     */
+    private final ReentrantReadWriteLock syncLock = new ReentrantReadWriteLock();
+    private final BinarySyncCodec binaryCodec;
+    /**
+     * nodes modified before this time are in the storage
+     */
+    private volatile long persisted;
+    /**
+     * by level, {@code null} if the level is not indexed
+     */
+    private final NodeIndex[] indexes;
+    private final boolean indexed;
+    /**
+     * copies of the values replaced while read views are open
+     */
+    private final ValueSerializer<Node.Value>[] serializers;
+    /**
+     * writes of this epoch are hidden from the open read views
+     */
+    private volatile long epoch;
+    /**
+     * number of open read views by epoch
+     */
+    private final TreeMap<Long, Integer> views = new TreeMap<>();
+    /**
+     * epoch of the oldest open read view, {@link Long#MAX_VALUE} if none
+     */
+    private volatile long oldestView = Long.MAX_VALUE;
+    /**
+     * nodes with a history by the epoch they were written in, the values of an epoch are dropped once no open view is
+     * older
+     */
+    private final ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Node>> versioned = new ConcurrentSkipListMap<>();
+    /**
+     * new read views wait while the master evicts, guarded by {@link #views}
+     */
+    private boolean evicting;
+    /**
+     * ms eviction waits for the open read views to close before it is skipped, new views wait meanwhile
+     */
+    public long evictViewsTimeout = 60_000;
+    /**
+     * decoding of a sync payload
+     */
+    private final Timer decodeTime = timer( "statsdb.master.decode" );
+    /**
+     * one batch of nodes of a root, waiting for the root lock included
+     */
+    private final Timer mergeTime = timer( "statsdb.master.merge" );
+    /**
+     * containers of one root merged by a sync
+     */
+    private final Timer aggregateTime = timer( "statsdb.master.aggregate" );
+    private final Timer loadTime = timer( "statsdb.storage.load" );
+    private final Timer storeTime = timer( "statsdb.storage.store" );
+    private final DistributionSummary storeNodes = DistributionSummary.builder( "statsdb.storage.store.nodes" )
+        .baseUnit( "nodes" )
+        .register( Metrics.globalRegistry );
 
     public StatsDBMaster( NodeSchema schema, StatsDBStorage storage ) {
+        this( schema, storage, 1 );
+    }
+
+    /**
+     * @param mergeThreads root keys of a sync are merged and root keys of the loaded tree are aggregated in parallel
+     *                     if greater than 1
+     */
+    public StatsDBMaster( NodeSchema schema, StatsDBStorage storage, int mergeThreads ) {
+        this( schema, storage, mergeThreads, null );
+    }
+
+    /**
+     * @param wal syncs left in the log by the previous run are merged on top of the loaded tree. A sync can be merged
+     *            twice if the process stopped during a store.
+     */
+    public StatsDBMaster( NodeSchema schema, StatsDBStorage storage, int mergeThreads, StatsDBWal wal ) {
         super( schema );
         this.storage = storage;
+        this.mergePool = mergeThreads > 1 ? new ForkJoinPool( mergeThreads ) : null;
+        this.wal = wal;
+        this.binaryCodec = new BinarySyncCodec( schema );
+
+        Preconditions.checkArgument( !schema.get( 0 ).indexed, "roots are not indexed" );
+        this.indexes = new NodeIndex[schema.size()];
+        for( var level = 1; level < schema.size(); level++ )
+            if( schema.get( level ).indexed ) indexes[level] = new NodeIndex();
+        this.indexed = Stream.of( indexes ).anyMatch( Objects::nonNull );
+        this.serializers = schema.serializers();
+
+        persisted = DateTimeUtils.currentTimeMillis();
+        db.putAll( loadTime.record( () -> storage.load( schema ) ) );
+        init();
+
+        if( wal != null ) wal.replay( this::replay );
+    }
 
-        db.putAll( storage.load( schema ) );
-        init( db.values() );
+    private static Timer timer( String name ) {
+        return Timer.builder( name )
+            .publishPercentileHistogram()
+            .register( Metrics.globalRegistry );
     }
 
-    private void merge( String key, Node masterNode, Node rNode, List<List<String>> retList, int level ) {
+    private boolean merge( Node root, NodeId nodeId, Node rNode, RootMerge rootMerge ) {
+        var masterNode = root;
+        rootMerge.markDirty( 0, root );
+        for( var level = 1; level < nodeId.size(); level++ ) {
+            masterNode = child( masterNode, nodeId, level );
+            rootMerge.markDirty( level, masterNode );
+        }
+
         if( log.isTraceEnabled() )
-            log.trace( "merge {}/{}[{}]::{}", schema.get( level ).key, schema.get( level ).clazz, level, key );
-        assert Objects.equals( masterNode.v.getClass(), rNode.v.getClass() )
-            : "[" + level + "]/" + key + "::" + masterNode.v.getClass() + " vs " + rNode.v.getClass();
+            log.trace( "merge {}/{}::{}", schema.get( nodeId.size() - 1 ).key, schema.get( nodeId.size() - 1 ).clazz, nodeId );
+        assert rNode.v == null || Objects.equals( masterNode.v.getClass(), rNode.v.getClass() )
+            : nodeId + "::" + masterNode.v.getClass() + " vs " + rNode.v.getClass();
+
+        modified.add( nodeId );
+        write( masterNode, nodeId.size() - 1 );
+
+        return masterNode.merge( rNode );
+    }
+
+    /**
+     * keys of new nodes are {@link Symbols#intern(String) interned}, new nodes are indexed
+     */
+    private Node child( Node parent, NodeId nodeId, int level ) {
+        var key = nodeId.get( level );
+        var child = parent.child( key );
+        if( child != null ) return child;
+
+        var created = created( new Node( schema.get( level ).newInstance() ) );
+        child = parent.child( Symbols.intern( key ), k -> created );
+        if( child == created ) index( nodeId, level );
+
+        return child;
+    }
+
+    /**
+     * hidden from the open read views
+     */
+    private Node created( Node node ) {
+        if( oldestView != Long.MAX_VALUE ) {
+            node.history = new Node.Version( epoch, Node.ABSENT, null );
+            versioned( node );
+        }
+
+        return node;
+    }
 
-        var list = merge( masterNode.db, rNode.db, retList, level );
-        list.forEach( l -> l.add( 0, key ) );
+    /**
+     * Copy on write, called before the value of the node is changed. If read views are open, the value is replaced
+     * with a copy once per epoch and the views keep reading the old one.
+     */
+    @SuppressWarnings( "unchecked" )
+    private void write( Node node, int level ) {
+        var oldest = oldestView;
+        if( oldest == Long.MAX_VALUE ) {
+            if( node.history != null ) node.history = null;
+            return;
+        }
+
+        synchronized( node ) {
+            var history = node.history;
+            if( history != null && history.until == epoch ) return;
 
-        retList.addAll( list );
+            var copy = copy( node.v, level );
+            if( copy instanceof Node.Container )
+                ( ( Node.Container ) copy ).aggregate( node.children().values().stream().map( c -> c.v ).filter( Objects::nonNull ).toList() );
 
-        var ret = masterNode.merge( rNode );
-        if( !ret ) {
-            var k = new ArrayList<String>();
-            k.add( key );
-            retList.add( k );
+            node.history = new Node.Version( epoch, node.v, prune( history, oldest ) );
+            node.v = copy;
         }
+        versioned( node );
     }
 
-    private List<List<String>> merge( Map<String, Node> masterDB, Map<String, Node> remoteDB, List<List<String>> retList, int level ) {
-        for( var entry : remoteDB.entrySet() ) {
-            var key = entry.getKey();
-            var rNode = entry.getValue();
+    private void versioned( Node node ) {
+        versioned.computeIfAbsent( epoch, e -> new ConcurrentLinkedQueue<>() ).add( node );
+    }
 
-            var masterNode = masterDB.computeIfAbsent( key, k -> new Node( schema.get( level + 1 ).newInstance() ) );
+    /**
+     * @return the history without the values no open read view can see
+     */
+    private static Node.Version prune( Node.Version history, long oldest ) {
+        if( history == null || history.until <= oldest ) return null;
 
-            merge( key, masterNode, rNode, retList, level + 1 );
+        for( var version = history; version.older != null; version = version.older ) {
+            if( version.older.until <= oldest ) {
+                version.older = null;
+                break;
+            }
         }
 
-        return retList;
+        return history;
     }
 
-    private List<List<String>> merge( ArrayList<Sync.NodeIdNode> remoteDB ) {
-        assert remoteDB != null;
+    /**
+     * {@link Node.Value#copy()} of the value, a round trip through the serializer of the level if it has none.
+     * Aggregates of containers are computed again.
+     */
+    @SneakyThrows
+    private Node.Value copy( Node.Value value, int level ) {
+        if( value == null ) return null;
 
-        var retList = new ArrayList<List<String>>();
+        var copy = value.copy();
+        if( copy != null && copy.getClass() == value.getClass() ) return copy;
 
-        var remoteDbTree = toTree( remoteDB );
+        var out = new ByteArrayOutputStream();
+        serializers[level].write( new DataOutputStream( out ), value );
 
-        remoteDbTree.forEach( ( key, rnode ) -> {
-            var mnode = db.computeIfAbsent( key, k -> new Node( schema.get( 0 ).newInstance() ) );
+        return serializers[level].read( new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) ) );
+    }
 
-            merge( key, mnode, rnode, retList, 0 );
-            updateAggregates( mnode );
-        } );
+    /**
+     * Waits for the syncs being merged, the view sees them all and none of the later ones. Waits for a running
+     * {@link #evict() eviction} too.
+     *
+     * @see ReadView
+     */
+    @SneakyThrows
+    public ReadView view() {
+        while( true ) {
+            synchronized( views ) {
+                while( evicting ) views.wait();
+            }
+
+            syncLock.writeLock().lock();
+            try {
+                synchronized( views ) {
+                    if( evicting ) continue;
 
-        return retList;
+                    var viewEpoch = epoch;
+                    epoch = viewEpoch + 1;
+                    views.merge( viewEpoch, 1, Integer::sum );
+                    oldestView = views.firstKey();
+
+                    return new ReadView( db, viewEpoch, () -> close( viewEpoch ) );
+                }
+            } finally {
+                syncLock.writeLock().unlock();
+            }
+        }
     }
 
-    private Map<String, Node> toTree( ArrayList<Sync.NodeIdNode> remoteDB ) {
-        var ret = new HashMap<String, Node>();
+    /**
+     * Values no open view is older than are dropped. Writes go to a newer epoch than the oldest view, its values are
+     * dropped without a lock. The values of the current epoch are dropped with the last view under the write lock, no
+     * view is opened and no value is written meanwhile.
+     */
+    private void close( long viewEpoch ) {
+        long oldest;
+        synchronized( views ) {
+            views.computeIfPresent( viewEpoch, ( k, count ) -> count > 1 ? count - 1 : null );
+            oldest = views.isEmpty() ? Long.MAX_VALUE : views.firstKey();
+            if( oldest != Long.MAX_VALUE ) oldestView = oldest;
+            views.notifyAll();
+        }
 
-        for( var nodeIdNode : remoteDB ) {
-            var node = nodeIdNode.node;
-            var nodeId = nodeIdNode.nodeId;
+        if( oldest != Long.MAX_VALUE ) {
+            reclaim( oldest );
+            return;
+        }
 
-            Node treeNode = null;
-            for( var i = 0; i < nodeId.size(); i++ ) {
-                var key = nodeId.get( i );
-                var finalI = i;
-                treeNode = ( treeNode != null ? treeNode.db
-                    : ret ).computeIfAbsent( key, k -> new Node( schema.get( finalI ).newInstance() ) );
+        syncLock.writeLock().lock();
+        try {
+            synchronized( views ) {
+                if( !views.isEmpty() ) return;
+                oldestView = Long.MAX_VALUE;
             }
 
-            treeNode.set( node );
+            reclaim( Long.MAX_VALUE );
+        } finally {
+            syncLock.writeLock().unlock();
         }
+    }
 
-        return ret;
+    /**
+     * drops the values of the epochs up to the given one from the history of the nodes written in them
+     */
+    private void reclaim( long epoch ) {
+        var buckets = versioned.headMap( epoch, true );
+        for( Map.Entry<Long, ConcurrentLinkedQueue<Node>> bucket; ( bucket = buckets.pollFirstEntry() ) != null; ) {
+            for( var node : bucket.getValue() ) {
+                synchronized( node ) {
+                    node.history = prune( node.history, epoch );
+                }
+            }
+        }
+    }
+
+    private void index( NodeId nodeId, int level ) {
+        var index = indexes[level];
+        if( index == null ) return;
+
+        var keys = new String[level + 1];
+        for( var i = 0; i <= level; i++ ) keys[i] = Symbols.intern( nodeId.get( i ) );
+        index.add( keys[level], new NodeId( keys ) );
+    }
+
+    private void unindex( NodeId path ) {
+        var index = indexes[path.size() - 1];
+        if( index != null ) index.remove( path.get( path.size() - 1 ), path );
+    }
+
+    /**
+     * @return paths of the nodes of an {@link NodeSchema.NodeConfiguration#indexed() indexed} level with the key,
+     * without walking the tree
+     */
+    public Set<NodeId> find( int level, String key ) {
+        Preconditions.checkElementIndex( level, schema.size(), "level" );
+        var index = indexes[level];
+        Preconditions.checkArgument( index != null, "level %s is not indexed", level );
+
+        return index.get( key );
+    }
+
+    /**
+     * aggregates and indexes the loaded tree, root keys in parallel
+     */
+    private void init() {
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+        for( var entry : db.entrySet() ) {
+            execute( tasks, () -> {
+                init( List.of( entry.getValue() ) );
+                if( indexed ) index( entry.getValue(), 0, new String[] { entry.getKey() } );
+            } );
+        }
+        join( tasks );
+    }
+
+    private void index( Node node, int level, String[] path ) {
+        node.children().forEach( ( key, child ) -> {
+            var childPath = Arrays.copyOf( path, level + 2 );
+            childPath[level + 1] = key;
+
+            var index = indexes[level + 1];
+            if( index != null ) index.add( key, new NodeId( childPath ) );
+            index( child, level + 1, childPath );
+        } );
     }
 
     @SuppressWarnings( "unchecked" )
     private void init( Collection<Node> nodes ) {
         nodes.forEach( node -> {
             if( node.v instanceof Node.Container ) {
-                init( node.db.values() );
-                ( ( Node.Container ) node.v ).aggregate( Lists.map( node.db.values(), b -> b.v ) );
+                init( node.children().values() );
+                ( ( Node.Container ) node.v ).aggregate( Lists.map( node.children().values(), b -> b.v ) );
             }
         } );
     }
 
+    /**
+     * new nodes are indexed, the value is copied on write
+     */
+    @Override
+    protected <V extends Node.Value<V>> void update( String[] key, Consumer<V> update ) {
+        assert key.length > 0;
+
+        var nodeId = new NodeId( key );
+
+        syncLock.readLock().lock();
+        try {
+            db.compute( key[0], ( k, n ) -> {
+                var root = n != null ? n : created( new Node( schema.get( 0 ).newInstance() ) );
+                var node = root;
+                for( var level = 1; level < key.length; level++ ) node = child( node, nodeId, level );
+
+                write( node, key.length - 1 );
+                node.updateValue( update );
+
+                return root;
+            } );
+        } finally {
+            syncLock.readLock().unlock();
+        }
+
+        modified.add( nodeId );
+    }
+
     public boolean update( Sync sync, String host ) {
         assert sync != null;
         assert sync.data != null;
 
-        synchronized( host.intern() ) {
-            var failedKeys = merge( sync.data );
+        return merge( host, wal != null ? binaryCodec.encode( sync ) : null,
+            consumer -> sync.data.forEach( nodeIdNode -> consumer.accept( nodeIdNode.nodeId, nodeIdNode.node ) ) );
+    }
+
+    /**
+     * The payload is decoded twice: a first pass keeping nothing checks it, a payload failing to decode leaves the tree
+     * untouched. The second pass merges the nodes as they are decoded, at most {@link #mergeBatchSize} of them are held
+     * at a time.
+     */
+    public boolean update( SyncCodec codec, byte[] data, String host ) {
+        validate( codec, data );
+
+        return merge( host, data, consumer -> codec.decode( data, consumer ) );
+    }
+
+    private void validate( SyncCodec codec, byte[] data ) {
+        var started = System.nanoTime();
+        codec.decode( data, ( nodeId, node ) -> {} );
+        decodeTime.record( System.nanoTime() - started, TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * only decoded syncs are logged
+     */
+    private boolean merge( String host, byte[] data, Consumer<BiConsumer<NodeId, Node>> nodes ) {
+        syncLock.readLock().lock();
+        try {
+            if( wal != null ) wal.append( host, data );
+
+            return merge( host, nodes );
+        } finally {
+            syncLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * a record failing to decode is logged and skipped, it must not stop the master from starting
+     */
+    private void replay( String host, byte[] data ) {
+        var codec = BinarySyncCodec.isBinary( data ) ? binaryCodec : SyncCodec.JSON;
+        try {
+            validate( codec, data );
+        } catch( Exception e ) {
+            log.error( "[{}]: undecodable sync skipped: {}", host, e.getMessage(), e );
+            return;
+        }
+
+        merge( host, consumer -> codec.decode( data, consumer ) );
+    }
+
+    /**
+     * Nodes are grouped by root key, every group is merged under the lock of its master root node. Syncs from different
+     * hosts touching different roots never wait for each other. Once {@link #mergeBatchSize} nodes are buffered all
+     * groups are merged before the next node is taken.
+     */
+    private boolean merge( String host, Consumer<BiConsumer<NodeId, Node>> nodes ) {
+        var roots = new HashMap<String, RootMerge>();
+        var failedKeys = new ConcurrentLinkedQueue<NodeId>();
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+        var buffered = new int[1];
+
+        nodes.accept( ( nodeId, node ) -> {
+            var rootMerge = roots.computeIfAbsent( nodeId.get( 0 ), k -> new RootMerge( Symbols.intern( k ) ) );
+            rootMerge.batch.add( new Sync.NodeIdNode( nodeId, node ) );
+
+            if( ++buffered[0] >= mergeBatchSize ) {
+                flush( roots.values(), tasks, failedKeys );
+                buffered[0] = 0;
+            }
+        } );
+        flush( roots.values(), tasks, failedKeys );
+
+        for( var rootMerge : roots.values() ) execute( tasks, () -> aggregateTime.record( () -> aggregate( rootMerge ) ) );
+        join( tasks );
+
+        if( !failedKeys.isEmpty() ) {
+            log.error( "failed keys:" );
+            failedKeys.forEach( key -> log.error( "[{}]: {}", host, key ) );
+        }
+
+        return true;
+    }
 
-            if( !failedKeys.isEmpty() ) {
-                log.error( "failed keys:" );
-                failedKeys.forEach( key -> log.error( "[{}]: {}", host, key ) );
+    private void flush( Collection<RootMerge> roots, ArrayList<ForkJoinTask<?>> tasks, ConcurrentLinkedQueue<NodeId> failedKeys ) {
+        for( var rootMerge : roots ) {
+            var batch = rootMerge.batch;
+            if( batch.isEmpty() ) continue;
+
+            rootMerge.batch = new ArrayList<>();
+            execute( tasks, () -> mergeTime.record( () -> merge( rootMerge, batch, failedKeys ) ) );
+        }
+        join( tasks );
+    }
+
+    /**
+     * the root is taken again if it was evicted while waiting for its lock
+     */
+    private void merge( RootMerge rootMerge, ArrayList<Sync.NodeIdNode> batch, ConcurrentLinkedQueue<NodeId> failedKeys ) {
+        while( true ) {
+            var root = db.computeIfAbsent( rootMerge.rootKey, k -> created( new Node( schema.get( 0 ).newInstance() ) ) );
+
+            synchronized( root ) {
+                if( db.get( rootMerge.rootKey ) != root ) continue;
+
+                for( var nodeIdNode : batch ) {
+                    if( !merge( root, nodeIdNode.nodeId, nodeIdNode.node, rootMerge ) ) failedKeys.add( nodeIdNode.nodeId );
+                }
+
+                return;
             }
+        }
+    }
 
-            return true;
+    /**
+     * Only containers on merged paths are aggregated, deepest level first.
+     */
+    private void aggregate( RootMerge rootMerge ) {
+        var root = db.get( rootMerge.rootKey );
+        if( root == null ) return;
+
+        synchronized( root ) {
+            for( var level = rootMerge.dirty.size() - 1; level >= 0; level-- ) {
+                for( var node : rootMerge.dirty.get( level ) ) {
+                    write( node, level );
+                    aggregate( node );
+                }
+            }
         }
     }
 
+    private void execute( ArrayList<ForkJoinTask<?>> tasks, Runnable task ) {
+        if( mergePool == null ) task.run();
+        else tasks.add( mergePool.submit( task ) );
+    }
+
+    private static void join( ArrayList<ForkJoinTask<?>> tasks ) {
+        for( var task : tasks ) task.join();
+        tasks.clear();
+    }
+
+    /**
+     * the tree is replaced, open read views keep the old one
+     */
+    @Override
+    public synchronized void removeAll() {
+        db = new ConcurrentHashMap<>();
+
+        for( var index : indexes ) if( index != null ) index.clear();
+    }
+
     public void reset() {
+        var segment = rotate();
+
         removeAll();
+        modified.clear();
         storage.removeAll();
+
+        if( wal != null ) wal.truncate( segment );
+    }
+
+    private long rotate() {
+        if( wal == null ) return -1;
+
+        syncLock.writeLock().lock();
+        try {
+            return wal.rotate();
+        } finally {
+            syncLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A path is removed from the modified set before its node is read, an update racing with the store marks it
+     * again for the next one. Log segments are deleted once everything merged from them is stored.
+     */
+    private void store() {
+        var started = DateTimeUtils.currentTimeMillis();
+        var segment = rotate();
+
+        var nodeIds = new ArrayList<NodeId>( modified.size() );
+        for( var it = modified.iterator(); it.hasNext(); ) {
+            nodeIds.add( it.next() );
+            it.remove();
+        }
+
+        try {
+            storeTime.record( () -> storage.store( schema, db, nodeIds ) );
+            storeNodes.record( nodeIds.size() );
+        } catch( RuntimeException e ) {
+            modified.addAll( nodeIds );
+            throw e;
+        }
+
+        persisted = started;
+
+        if( wal != null ) wal.truncate( segment );
+    }
+
+    /**
+     * Removes the subtrees idle for longer than the {@link NodeSchema.NodeConfiguration#ttl ttl} of their level from
+     * the tree and the storage. A node is evicted only if it is stored and all its children are evicted, containers
+     * above the removed nodes are aggregated again.
+     * <p>
+     * Views read the live children, so eviction needs all the read views closed. New views wait until the eviction is
+     * done, the open ones get {@link #evictViewsTimeout} to close. Reports holding a view longer skip the eviction, it
+     * is retried on the next {@link #run()}.
+     */
+    @SneakyThrows
+    public void evict() {
+        if( schema.stream().noneMatch( nc -> nc.ttl > 0 ) ) return;
+
+        synchronized( views ) {
+            if( evicting ) return;
+            evicting = true;
+
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( evictViewsTimeout );
+            for( var left = evictViewsTimeout; !views.isEmpty() && left > 0; left = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() ) )
+                views.wait( left );
+
+            if( !views.isEmpty() ) {
+                evicting = false;
+                views.notifyAll();
+                log.warn( "read views are still open after {} ms, eviction skipped", evictViewsTimeout );
+                return;
+            }
+        }
+
+        try {
+            evictIdle();
+        } finally {
+            synchronized( views ) {
+                evicting = false;
+                views.notifyAll();
+            }
+        }
+    }
+
+    private void evictIdle() {
+        var now = DateTimeUtils.currentTimeMillis();
+        var evicted = new ConcurrentLinkedQueue<NodeId>();
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+
+        syncLock.readLock().lock();
+        try {
+            for( var rootKey : db.keySet() ) {
+                execute( tasks, () -> db.computeIfPresent( rootKey, ( k, root ) -> {
+                    synchronized( root ) {
+                        var path = new String[schema.size()];
+                        path[0] = k;
+                        if( evict( root, 0, path, now, evicted ) >= 0 ) return root;
+
+                        evicted.add( new NodeId( k ) );
+                        return null;
+                    }
+                } ) );
+            }
+            join( tasks );
+        } finally {
+            syncLock.readLock().unlock();
+        }
+
+        if( !evicted.isEmpty() ) {
+            log.debug( "evicted {} subtrees", evicted.size() );
+            storage.remove( schema, evicted );
+        }
+    }
+
+    /**
+     * @return -1 if the node is expired and its whole subtree can be evicted, otherwise the number of subtrees evicted
+     * below it
+     */
+    private int evict( Node node, int level, String[] path, long now, Collection<NodeId> evicted ) {
+        var count = 0;
+        List<NodeId> removed = null;
+        for( var child : node.children().entrySet() ) {
+            path[level + 1] = child.getKey();
+
+            var childCount = evict( child.getValue(), level + 1, path, now, evicted );
+            if( childCount >= 0 ) {
+                count += childCount;
+                continue;
+            }
+
+            node.remove( child.getKey(), child.getValue() );
+            var childPath = new NodeId( Arrays.copyOf( path, level + 2 ) );
+            if( indexed ) unindex( childPath );
+            if( removed == null ) removed = new ArrayList<>();
+            removed.add( childPath );
+        }
+
+        var ttl = schema.get( level ).ttl;
+        if( ttl > 0 && node.children().isEmpty() && node.mt < persisted && now - node.mt > ttl ) return -1;
+
+        if( removed != null ) {
+            evicted.addAll( removed );
+            count += removed.size();
+        }
+        if( count > 0 && node.v instanceof Node.Container ) {
+            aggregate( node );
+            modified.add( new NodeId( Arrays.copyOf( path, level + 1 ) ) );
+        }
+
+        return count;
     }
 
     @Override
+    @SneakyThrows
     public void close() {
-        storage.store( schema, db );
+        store();
+
+        if( wal != null ) wal.close();
+        if( mergePool != null ) mergePool.shutdown();
     }
 
+    /**
+     * stores the tree and evicts the idle subtrees
+     */
     @Override
     public void run() {
-        storage.store( schema, db );
+        store();
+        evict();
+    }
+
+    private static final class RootMerge {
+        private final String rootKey;
+        /**
+         * containers on the merged paths by level
+         */
+        private final ArrayList<Set<Node>> dirty = new ArrayList<>();
+        private ArrayList<Sync.NodeIdNode> batch = new ArrayList<>();
+
+        private RootMerge( String rootKey ) {
+            this.rootKey = rootKey;
+        }
+
+        private void markDirty( int level, Node node ) {
+            if( !( node.v instanceof Node.Container ) ) return;
+
+            while( dirty.size() <= level ) dirty.add( Collections.newSetFromMap( new IdentityHashMap<>() ) );
+            dirty.get( level ).add( node );
+        }
     }
 }
@@ -1,12 +1,10 @@
 package oap.statsdb;
 
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.slf4j.Slf4j;
-import oap.json.Binder;
 import oap.message.MessageListener;
 import oap.message.MessageProtocol;
 
-import java.io.ByteArrayInputStream;
-
 import static oap.statsdb.StatsDBTransportMessage.MESSAGE_TYPE;
 
 /**
@@ -15,9 +13,11 @@ import static oap.statsdb.StatsDBTransportMessage.MESSAGE_TYPE;
 @Slf4j
 public class StatsDBMessageListener implements MessageListener {
     private final StatsDBMaster master;
+    private final BinarySyncCodec binaryCodec;
 
     public StatsDBMessageListener( StatsDBMaster master ) {
         this.master = master;
+        this.binaryCodec = new BinarySyncCodec( master.schema );
     }
 
     @Override
@@ -32,11 +32,15 @@ public class StatsDBMessageListener implements MessageListener {
 
     @Override
     public short run( int version, String hostName, int size, byte[] data, String md5 ) {
+        var binary = BinarySyncCodec.isBinary( data );
+
         log.trace( "new stats version {} hostName {} size {} md5 {} data '{}'",
-            version, hostName, size, md5, new String( data ) );
+            version, hostName, size, md5, binary ? "<binary>" : new String( data ) );
+
+        Metrics.counter( "statsdb.master.messages", "host", hostName ).increment();
+        Metrics.summary( "statsdb.master.message.bytes", "host", hostName ).record( data.length );
 
-        var sync = Binder.json.unmarshal( RemoteStatsDB.Sync.class, new ByteArrayInputStream( data ) );
-        master.update( sync, hostName );
+        master.update( binary ? binaryCodec : SyncCodec.JSON, data, hostName );
 
         return MessageProtocol.STATUS_OK;
     }
@@ -24,6 +24,7 @@
 
 package oap.statsdb;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -36,5 +37,19 @@ public interface StatsDBStorage {
 
     void store( NodeSchema schema, Map<String, Node> db );
 
+    /**
+     * Stores only the modified nodes, ids of removed nodes are skipped. The whole tree is stored by default.
+     */
+    default void store( NodeSchema schema, Map<String, Node> db, Collection<NodeId> modified ) {
+        store( schema, db );
+    }
+
+    /**
+     * Removes the nodes and their subtrees evicted from the master. Nothing to do for storages writing the whole tree,
+     * the next store drops them.
+     */
+    default void remove( NodeSchema schema, Collection<NodeId> nodeIds ) {
+    }
+
     void removeAll();
 }
@@ -0,0 +1,230 @@
+package oap.statsdb;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static oap.statsdb.Varints.readSignedVarLong;
+import static oap.statsdb.Varints.readString;
+import static oap.statsdb.Varints.readVarInt;
+import static oap.statsdb.Varints.readVarLong;
+import static oap.statsdb.Varints.writeSignedVarLong;
+import static oap.statsdb.Varints.writeString;
+import static oap.statsdb.Varints.writeVarInt;
+import static oap.statsdb.Varints.writeVarLong;
+
+/**
+ * Snapshot of the whole tree in a local file. Store writes a temporary file next to it, forces it to disk and renames
+ * it over the previous snapshot, load reads the memory mapped file.
+ * <pre>
+ * 'S' 'D' 'B' 'F' version
+ * varint root count, nodes:
+ *   key
+ *   varlong ct, signed varlong mt - ct
+ *   boolean has value, value: {@link ValueSerializer} of the level or length prefixed json
+ *   varint child count, children
+ * long crc32c of everything before it
+ * </pre>
+ */
+@Slf4j
+public class StatsDBStorageFile implements StatsDBStorage {
+    public static final byte VERSION = 1;
+    private static final byte[] MAGIC = { 'S', 'D', 'B', 'F' };
+    /**
+     * a single mapping is limited to 2GB
+     */
+    private static final long WINDOW = 1L << 30;
+
+    private final Path path;
+    public int bufferSize = 64 * 1024;
+
+    public StatsDBStorageFile( Path path ) {
+        this.path = path;
+    }
+
+    @Override
+    @SneakyThrows
+    public Map<String, Node> load( NodeSchema schema ) {
+        log.debug( "load {} from {}", schema, path );
+
+        var db = new HashMap<String, Node>();
+        if( !Files.exists( path ) ) return db;
+
+        try( var channel = FileChannel.open( path, READ ) ) {
+            var size = channel.size() - 8;
+            if( size < MAGIC.length + 1 ) throw new IllegalStateException( path + ": not a snapshot" );
+
+            var crc = new CRC32C();
+            for( var position = 0L; position < size; position += WINDOW )
+                crc.update( channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min( WINDOW, size - position ) ) );
+            if( crc.getValue() != channel.map( FileChannel.MapMode.READ_ONLY, size, 8 ).getLong() )
+                throw new IllegalStateException( path + ": checksum mismatch" );
+
+            var in = new DataInputStream( new MappedInputStream( channel, size ) );
+
+            var magic = new byte[MAGIC.length];
+            in.readFully( magic );
+            for( var i = 0; i < MAGIC.length; i++ )
+                if( magic[i] != MAGIC[i] ) throw new IllegalStateException( path + ": not a snapshot" );
+            var version = in.readByte();
+            if( version != VERSION ) throw new IllegalStateException( path + ": unsupported snapshot version " + version );
+
+            read( in, schema.serializers(), 0, db::put );
+        }
+
+        log.debug( "{}: {} roots", path, db.size() );
+
+        return db;
+    }
+
+    private static void read( DataInput in, ValueSerializer<Node.Value>[] serializers, int level,
+                              BiConsumer<String, Node> db ) throws IOException {
+        var size = readVarInt( in );
+        if( size > 0 && level >= serializers.length )
+            throw new IllegalStateException( "level '" + level + "' is out of bounds [0.." + serializers.length + ")" );
+
+        for( var i = 0; i < size; i++ ) {
+            var key = Symbols.intern( readString( in ) );
+            var ct = readVarLong( in );
+            var mt = ct + readSignedVarLong( in );
+            var v = in.readBoolean() ? serializers[level].read( in ) : null;
+
+            var node = new Node( mt, ct, v );
+            read( in, serializers, level + 1, node::put );
+            db.accept( key, node );
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public void store( NodeSchema schema, Map<String, Node> db ) {
+        log.debug( "store {} to {}", schema, path );
+
+        var parent = path.toAbsolutePath().getParent();
+        if( parent != null ) Files.createDirectories( parent );
+
+        var tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+        try( var channel = FileChannel.open( tmp, CREATE, WRITE, TRUNCATE_EXISTING ) ) {
+            var crc = new CRC32C();
+            var out = new DataOutputStream( new CheckedOutputStream(
+                new BufferedOutputStream( Channels.newOutputStream( channel ), bufferSize ), crc ) );
+
+            out.write( MAGIC );
+            out.writeByte( VERSION );
+            write( out, schema.serializers(), 0, db );
+            out.flush();
+
+            out.writeLong( crc.getValue() );
+            out.flush();
+
+            channel.force( true );
+        }
+
+        Files.move( tmp, path, ATOMIC_MOVE, REPLACE_EXISTING );
+
+        if( parent != null ) fsync( parent );
+    }
+
+    /**
+     * the rename is durable only once its directory is synced, the log is truncated against the snapshot when the store
+     * returns
+     */
+    private static void fsync( Path directory ) throws IOException {
+        try( var channel = FileChannel.open( directory, READ ) ) {
+            channel.force( true );
+        }
+    }
+
+    private static void write( DataOutputStream out, ValueSerializer<Node.Value>[] serializers, int level,
+                               Map<String, Node> db ) throws IOException {
+        var children = new ArrayList<>( db.entrySet() );
+        if( !children.isEmpty() && level >= serializers.length )
+            throw new IllegalArgumentException( "level '" + level + "' is out of bounds [0.." + serializers.length + ")" );
+
+        writeVarInt( out, children.size() );
+        for( var child : children ) {
+            var node = child.getValue();
+
+            writeString( out, child.getKey() );
+            synchronized( node ) {
+                writeVarLong( out, node.ct );
+                writeSignedVarLong( out, node.mt - node.ct );
+                out.writeBoolean( node.v != null );
+                if( node.v != null ) serializers[level].write( out, node.v );
+            }
+
+            write( out, serializers, level + 1, node.children() );
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public void removeAll() {
+        Files.deleteIfExists( path );
+    }
+
+    /**
+     * Maps the file window by window as it is read.
+     */
+    private static final class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private long position;
+        private MappedByteBuffer buffer;
+
+        private MappedInputStream( FileChannel channel, long size ) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        private boolean remaining() throws IOException {
+            if( buffer != null && buffer.hasRemaining() ) return true;
+            if( position >= size ) return false;
+
+            var length = Math.min( WINDOW, size - position );
+            buffer = channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+            position += length;
+
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return remaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if( len == 0 ) return 0;
+            if( !remaining() ) return -1;
+
+            var count = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, count );
+
+            return count;
+        }
+    }
+}
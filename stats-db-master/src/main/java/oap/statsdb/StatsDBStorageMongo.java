@@ -1,25 +1,41 @@
 package oap.statsdb;
 
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.ReplaceOneModel;
 import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.slf4j.Slf4j;
 import oap.reflect.TypeRef;
 import oap.storage.mongo.MongoClient;
 import org.apache.commons.lang3.mutable.MutableInt;
 import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.codecs.configuration.CodecRegistries;
 import org.joda.time.DateTimeUtils;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
 
 /**
  * Created by igor.petrenko on 26.03.2019.
@@ -30,51 +46,148 @@ public class StatsDBStorageMongo implements StatsDBStorage, Closeable {
 
     private final MongoCollection<MongoNode> collection;
     public int bulkSize = 1000;
+    /**
+     * root keys are split between the threads, every thread loads the subtrees of its own roots
+     */
+    public int loadThreads = 1;
+    public int loadBatchSize = 1000;
+    /**
+     * {@link #createIndex(NodeSchema)} on the first load. Off by default: on a large collection the index build can take
+     * longer than the load it speeds up, create it as a migration instead.
+     */
+    public boolean createIndexOnLoad = false;
     private long lastFsync = -1;
+    private boolean indexed;
+    private final Counter loaded = Metrics.counter( "statsdb.storage.documents", "operation", "load" );
+    private final Counter stored = Metrics.counter( "statsdb.storage.documents", "operation", "store" );
+    private final Counter removed = Metrics.counter( "statsdb.storage.documents", "operation", "remove" );
 
     public StatsDBStorageMongo( MongoClient mongoClient, String table ) {
+        this( mongoClient, table, Map.of() );
+    }
+
+    /**
+     * @param mappings values of these classes are written by their mappings, the other ones through jackson
+     */
+    public StatsDBStorageMongo( MongoClient mongoClient, String table, Map<Class<?>, BsonValueMapping<?>> mappings ) {
+        this( collection( mongoClient, table, mappings ) );
+    }
+
+    StatsDBStorageMongo( MongoCollection<MongoNode> collection ) {
+        this.collection = collection;
+    }
+
+    private static MongoCollection<MongoNode> collection( MongoClient mongoClient, String table,
+                                                          Map<Class<?>, BsonValueMapping<?>> mappings ) {
         var ref = new TypeRef<MongoNode>() {
         };
 
         var codecRegistry = CodecRegistries.fromRegistries(
-            CodecRegistries.fromCodecs( new JsonNodeCodec() ),
+            CodecRegistries.fromCodecs( new BsonNodeCodec( mappings ) ),
             mongoClient.getCodecRegistry()
         );
 
-        this.collection = mongoClient
+        return mongoClient
             .getCollection( table, ref.clazz() )
             .withCodecRegistry( codecRegistry );
+    }
 
+    /**
+     * The {@code _id} index matches the whole id only. Subtrees are found by the keys of their first levels, the
+     * compound index of the levels serves them: the ranges of a parallel load and the deletes of evicted subtrees.
+     * Without it both scan the collection. Builds the index if there is none, a one-time migration of an existing
+     * collection.
+     */
+    public void createIndex( NodeSchema schema ) {
+        collection.createIndex( Indexes.ascending( schema.stream().map( nc -> "_id." + nc.key ).toList() ) );
     }
 
     @Override
     public Map<String, Node> load( NodeSchema schema ) {
-        log.debug( "load {}", schema );
+        log.debug( "load {} threads {}", schema, loadThreads );
+
+        if( createIndexOnLoad && !indexed ) {
+            createIndex( schema );
+            indexed = true;
+        }
+
+        Map<String, Node> db;
+        if( loadThreads <= 1 ) db = load( schema, collection.find() );
+        else {
+            var rootField = "_id." + schema.get( 0 ).key;
+            var rootKeys = rootKeys( rootField );
+            var partition = ( rootKeys.size() + loadThreads - 1 ) / loadThreads;
+
+            var pool = new ForkJoinPool( loadThreads );
+            try {
+                var tasks = new ArrayList<ForkJoinTask<Map<String, Node>>>();
+                for( var from = 0; from < rootKeys.size(); from += partition ) {
+                    var range = and( gte( rootField, rootKeys.get( from ) ),
+                        lte( rootField, rootKeys.get( Math.min( from + partition, rootKeys.size() ) - 1 ) ) );
+                    tasks.add( pool.submit( () -> load( schema, collection.find( range ) ) ) );
+                }
+
+                db = new HashMap<>();
+                for( var task : tasks ) db.putAll( task.join() );
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        lastFsync = DateTimeUtils.currentTimeMillis();
+
+        return db;
+    }
+
+    /**
+     * Sorted root keys streamed by a cursor instead of {@code distinct}, no 16MB limit on the result. Contiguous ranges
+     * of them are loaded by the threads.
+     *
+     * @see #createIndex(NodeSchema)
+     */
+    private List<String> rootKeys( String rootField ) {
+        var pipeline = List.of(
+            Aggregates.sort( Sorts.ascending( rootField ) ),
+            Aggregates.group( "$" + rootField ),
+            Aggregates.sort( Sorts.ascending( "_id" ) ) );
+
+        return collection.aggregate( pipeline, Document.class )
+            .allowDiskUse( true )
+            .batchSize( loadBatchSize )
+            .map( document -> document.getString( "_id" ) )
+            .into( new ArrayList<>() );
+    }
+
+    private Map<String, Node> load( NodeSchema schema, FindIterable<MongoNode> nodes ) {
         final Map<String, Node> db = new HashMap<>();
+        var count = new MutableInt();
 
         final Consumer<MongoNode> cons = node -> {
-            assert node.n.db.isEmpty();
+            assert node.n.children().isEmpty();
+            count.increment();
 
-            var cdb = db;
-            for( int i = 0; i < node._id.size() - 1; i++ ) {
-                var nc = schema.get( i );
-                var key = node._id.get( nc.key );
-                cdb = cdb.computeIfAbsent( key, k -> new Node( nc.newInstance() ) ).db;
+            var rootKey = Symbols.intern( node._id.get( schema.get( 0 ).key ) );
+            if( node._id.size() == 1 ) {
+                var root = db.get( rootKey );
+                if( root == null ) db.put( rootKey, node.n );
+                else root.set( node.n );
+                return;
             }
 
-            var lastId = node._id.get( schema.get( node._id.size() - 1 ).key );
-            var lastNode = cdb.get( lastId );
-            if( lastNode == null ) {
-                cdb.put( lastId, node.n );
-            } else {
-                cdb.put( lastId, node.n );
-                node.n.db.putAll( lastNode.db );
+            var parent = db.computeIfAbsent( rootKey, k -> new Node( schema.get( 0 ).newInstance() ) );
+            for( int i = 1; i < node._id.size() - 1; i++ ) {
+                var nc = schema.get( i );
+                parent = parent.child( Symbols.intern( node._id.get( nc.key ) ), k -> new Node( nc.newInstance() ) );
             }
-        };
 
-        collection.find().forEach( cons );
+            var lastId = Symbols.intern( node._id.get( schema.get( node._id.size() - 1 ).key ) );
+            var lastNode = parent.child( lastId );
+            if( lastNode == null ) parent.put( lastId, node.n );
+            else lastNode.set( node.n );
+        };
 
-        lastFsync = DateTimeUtils.currentTimeMillis();
+        nodes.batchSize( loadBatchSize ).forEach( cons );
+        loaded.increment( count.intValue() );
 
         return db;
     }
@@ -82,24 +195,70 @@ public class StatsDBStorageMongo implements StatsDBStorage, Closeable {
     @Override
     public void store( NodeSchema schema, Map<String, Node> db ) {
         log.debug( "store {}", schema );
-        var count = 0;
 
         var now = DateTimeUtils.currentTimeMillis();
 
+        var count = store( schema, db, collection::bulkWrite );
+        stored.increment( count );
+
+        lastFsync = now;
+
+        log.debug( "[{}] fsync modified: {}", collection.getNamespace(), count );
+    }
+
+    @Override
+    public void store( NodeSchema schema, Map<String, Node> db, Collection<NodeId> modified ) {
+        log.debug( "store {} modified {}", schema, modified.size() );
+
+        var now = DateTimeUtils.currentTimeMillis();
+
+        var count = store( schema, db, modified, collection::bulkWrite );
+        stored.increment( count );
+
+        lastFsync = now;
+
+        log.debug( "[{}] fsync modified: {}", collection.getNamespace(), count );
+    }
+
+    int store( NodeSchema schema, Map<String, Node> db, Consumer<List<WriteModel<MongoNode>>> writer ) {
         var bulk = new ArrayList<WriteModel<MongoNode>>();
-        count += store( schema, 0, new HashMap<>(), db, bulk );
+        var count = store( schema, 0, new HashMap<>(), db, bulk, writer );
         if( !bulk.isEmpty() ) {
-            collection.bulkWrite( bulk );
+            writer.accept( bulk );
             count += bulk.size();
         }
 
-        lastFsync = now;
+        return count;
+    }
 
-        log.debug( "[{}] fsync modified: {}", collection.getNamespace(), count );
+    int store( NodeSchema schema, Map<String, Node> db, Collection<NodeId> modified, Consumer<List<WriteModel<MongoNode>>> writer ) {
+        var bulk = new ArrayList<WriteModel<MongoNode>>();
+        var count = 0;
+        var orders = idOrders( schema );
+
+        for( var nodeId : modified ) {
+            var node = db.get( nodeId.get( 0 ) );
+            for( var i = 1; i < nodeId.size() && node != null; i++ ) node = node.child( nodeId.get( i ) );
+            if( node == null ) continue;
+
+            var order = orders[nodeId.size() - 1];
+            var id = new LinkedHashMap<String, String>( ( int ) ( order.length / 0.75f ) + 1 );
+            for( var level : order ) id.put( schema.get( level ).key, nodeId.get( level ) );
+
+            count += add( bulk, id, node, writer );
+        }
+
+        if( !bulk.isEmpty() ) {
+            writer.accept( bulk );
+            count += bulk.size();
+        }
+
+        return count;
     }
 
     private int store( NodeSchema schema, int index, Map<String, String> id,
-                       Map<String, Node> db, ArrayList<WriteModel<MongoNode>> bulk ) {
+                       Map<String, Node> db, ArrayList<WriteModel<MongoNode>> bulk,
+                       Consumer<List<WriteModel<MongoNode>>> writer ) {
         if( db.isEmpty() ) return 0;
 
         if( index < 0 || index >= schema.size() ) {
@@ -109,24 +268,78 @@ public class StatsDBStorageMongo implements StatsDBStorage, Closeable {
         var count = new MutableInt();
 
         db.forEach( ( key, value ) -> {
-            var newId = new HashMap<>( id );
-            newId.put( schema.get( index ).key, key );
-
-            if( value.mt >= lastFsync ) {
-                bulk.add( new ReplaceOneModel<>( eq( "_id", newId ), new MongoNode( newId, new Node( value.ct, value.mt, value.v ) ), REPLACE_OPTIONS_UPSERT ) );
-                if( bulk.size() >= bulkSize ) {
-                    collection.bulkWrite( bulk );
-                    count.add( bulk.size() );
-                    bulk.clear();
-                }
-            }
+            var newId = id( id, schema.get( index ).key, key );
 
-            count.add( store( schema, index + 1, newId, value.db, bulk ) );
+            if( value.mt >= lastFsync ) count.add( add( bulk, newId, value, writer ) );
+
+            count.add( store( schema, index + 1, newId, value.children(), bulk, writer ) );
         } );
 
         return count.intValue();
     }
 
+    /**
+     * the document {@code _id} is compared as a whole, both store paths must build it the same way
+     */
+    /**
+     * Levels of an id of every depth in the order {@link #id(Map, String, String)} iterates them, the field order of the
+     * stored {@code _id} documents: a filter by the whole {@code _id} matches only the same order. The order depends on
+     * the level names only.
+     */
+    private static int[][] idOrders( NodeSchema schema ) {
+        var orders = new int[schema.size()][];
+        var levels = new HashMap<String, Integer>();
+        Map<String, String> id = Map.of();
+        for( var depth = 0; depth < schema.size(); depth++ ) {
+            var key = schema.get( depth ).key;
+            levels.put( key, depth );
+            id = id( id, key, "" );
+            orders[depth] = id.keySet().stream().mapToInt( levels::get ).toArray();
+        }
+
+        return orders;
+    }
+
+    private static Map<String, String> id( Map<String, String> parent, String name, String key ) {
+        var id = new HashMap<>( parent );
+        id.put( name, key );
+
+        return id;
+    }
+
+    /**
+     * @return number of written documents
+     */
+    private int add( ArrayList<WriteModel<MongoNode>> bulk, Map<String, String> id, Node node,
+                     Consumer<List<WriteModel<MongoNode>>> writer ) {
+        bulk.add( new ReplaceOneModel<>( eq( "_id", id ), new MongoNode( id, new Node( node.mt, node.ct, node.v ) ), REPLACE_OPTIONS_UPSERT ) );
+        if( bulk.size() < bulkSize ) return 0;
+
+        writer.accept( bulk );
+        var count = bulk.size();
+        bulk.clear();
+
+        return count;
+    }
+
+    @Override
+    public void remove( NodeSchema schema, Collection<NodeId> nodeIds ) {
+        log.debug( "remove {} subtrees", nodeIds.size() );
+
+        var bulk = new ArrayList<WriteModel<MongoNode>>();
+        for( var nodeId : nodeIds ) {
+            var filters = new ArrayList<Bson>( nodeId.size() );
+            for( var i = 0; i < nodeId.size(); i++ ) filters.add( eq( "_id." + schema.get( i ).key, nodeId.get( i ) ) );
+            bulk.add( new DeleteManyModel<>( and( filters ) ) );
+
+            if( bulk.size() >= bulkSize ) {
+                removed.increment( collection.bulkWrite( bulk ).getDeletedCount() );
+                bulk.clear();
+            }
+        }
+        if( !bulk.isEmpty() ) removed.increment( collection.bulkWrite( bulk ).getDeletedCount() );
+    }
+
     @Override
     public void removeAll() {
         collection.deleteMany( new BsonDocument() );
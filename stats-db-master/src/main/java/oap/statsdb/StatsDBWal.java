@@ -0,0 +1,206 @@
+package oap.statsdb;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append only log of incoming syncs, split into segments. {@link StatsDBMaster} appends every sync before merging it,
+ * starts a new segment when it stores the tree and deletes the older ones after the store succeeded. Segments left
+ * from a previous run are replayed on startup.
+ * <p>
+ * A record is {@code int host length, int data length, int crc32c, host, data}, a torn or corrupted record ends its
+ * segment. Concurrent appends share one {@code fsync}: the first writer forces everything written so far, the writers
+ * waiting behind it find their records already forced.
+ */
+@Slf4j
+public class StatsDBWal implements Closeable {
+    private static final String SUFFIX = ".wal";
+    private static final int HEADER = 12;
+
+    private final Path directory;
+    private final Object forceLock = new Object();
+    /**
+     * force every append to disk before the sync is merged, otherwise the records are left to the os
+     */
+    public boolean fsync = true;
+    private volatile FileChannel channel;
+    private long segment;
+    /**
+     * bytes appended to all segments
+     */
+    private volatile long appended;
+    private long forced;
+
+    @SneakyThrows
+    public StatsDBWal( Path directory ) {
+        this.directory = directory;
+
+        Files.createDirectories( directory );
+
+        var segments = segments();
+        segment = segments.isEmpty() ? 0 : segments.get( segments.size() - 1 ) + 1;
+        channel = open( segment );
+    }
+
+    private FileChannel open( long segment ) throws IOException {
+        return FileChannel.open( path( segment ), CREATE_NEW, WRITE );
+    }
+
+    private Path path( long segment ) {
+        return directory.resolve( String.format( "%019d", segment ) + SUFFIX );
+    }
+
+    /**
+     * @return ids of the existing segments in order
+     */
+    private List<Long> segments() throws IOException {
+        var segments = new ArrayList<Long>();
+        try( var files = Files.newDirectoryStream( directory, "*" + SUFFIX ) ) {
+            for( var file : files ) {
+                var name = file.getFileName().toString();
+                segments.add( Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) ) );
+            }
+        }
+        segments.sort( null );
+
+        return segments;
+    }
+
+    @SneakyThrows
+    public void append( String host, byte[] data ) {
+        var hostBytes = host.getBytes( UTF_8 );
+
+        var crc = new CRC32C();
+        crc.update( hostBytes );
+        crc.update( data );
+
+        var header = ByteBuffer.allocate( HEADER );
+        header.putInt( hostBytes.length ).putInt( data.length ).putInt( ( int ) crc.getValue() ).flip();
+        var buffers = new ByteBuffer[] { header, ByteBuffer.wrap( hostBytes ), ByteBuffer.wrap( data ) };
+
+        long end;
+        synchronized( this ) {
+            var length = 0L;
+            while( buffers[2].hasRemaining() ) length += channel.write( buffers );
+            end = appended + length;
+            appended = end;
+        }
+
+        if( fsync ) force( end );
+    }
+
+    private void force( long end ) throws IOException {
+        synchronized( forceLock ) {
+            if( forced >= end ) return;
+
+            var target = appended;
+            channel.force( false );
+            forced = target;
+        }
+    }
+
+    /**
+     * Appends go to a new segment from now on.
+     *
+     * @return id of the new segment, the older ones can be {@link #truncate(long) truncated} once everything appended to
+     * them is stored
+     */
+    @SneakyThrows
+    public synchronized long rotate() {
+        synchronized( forceLock ) {
+            channel.force( false );
+            channel.close();
+            forced = appended;
+
+            segment++;
+            channel = open( segment );
+
+            return segment;
+        }
+    }
+
+    /**
+     * Deletes the segments older than the given one.
+     */
+    @SneakyThrows
+    public void truncate( long segment ) {
+        for( var id : segments() ) {
+            if( id >= segment ) break;
+
+            Files.deleteIfExists( path( id ) );
+        }
+    }
+
+    /**
+     * Reads the records of the segments older than the current one.
+     */
+    @SneakyThrows
+    public void replay( BiConsumer<String, byte[]> consumer ) {
+        long current;
+        synchronized( this ) {
+            current = segment;
+        }
+
+        for( var id : segments() ) {
+            if( id >= current ) break;
+
+            var path = path( id );
+            var size = Files.size( path );
+            var position = 0L;
+            var count = 0;
+            try( var in = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ) ) ) ) {
+                while( position + HEADER <= size ) {
+                    var hostLength = in.readInt();
+                    var dataLength = in.readInt();
+                    var checksum = in.readInt();
+                    if( hostLength < 0 || dataLength < 0 ) break;
+                    var next = position + HEADER + hostLength + dataLength;
+                    if( next > size ) break;
+
+                    var host = new byte[hostLength];
+                    var data = new byte[dataLength];
+                    in.readFully( host );
+                    in.readFully( data );
+
+                    var crc = new CRC32C();
+                    crc.update( host );
+                    crc.update( data );
+                    if( ( int ) crc.getValue() != checksum ) break;
+
+                    consumer.accept( new String( host, UTF_8 ), data );
+                    count++;
+                    position = next;
+                }
+            }
+
+            if( position != size )
+                log.warn( "{}: record {} is incomplete or corrupted, the rest of the segment is skipped", path, count );
+            log.info( "{}: {} syncs replayed", path, count );
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized( forceLock ) {
+            channel.force( false );
+            channel.close();
+        }
+    }
+}
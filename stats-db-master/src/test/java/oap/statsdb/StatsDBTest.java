@@ -25,28 +25,52 @@
 package oap.statsdb;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.ReplaceOneModel;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import oap.http.server.nio.NioHttpServer;
+import oap.json.Binder;
 import oap.message.MessageHttpHandler;
 import oap.message.MessageSender;
 import oap.message.MessageSenderUtils;
+import oap.statsdb.RemoteStatsDB.Sync;
 import oap.storage.mongo.MongoFixture;
 import oap.testng.EnvFixture;
 import oap.testng.Fixtures;
 import oap.testng.SystemTimerFixture;
 import oap.testng.TestDirectoryFixture;
 import oap.util.Cuid;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
 import org.joda.time.DateTimeUtils;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static oap.statsdb.NodeSchema.nc;
 import static oap.testng.TestDirectoryFixture.testPath;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
 
 /**
  * Created by igor.petrenko on 08.09.2017.
@@ -107,6 +131,82 @@ public class StatsDBTest extends Fixtures {
         }
     }
 
+    @Test
+    public void longCountersGrow() throws InterruptedException {
+        var counters = new LongCounters( 1 );
+        var threads = new ArrayList<Thread>();
+        for( var t = 0; t < 4; t++ ) {
+            var thread = new Thread( () -> {
+                for( var i = 0; i < 100_000; i++ ) counters.increment( 0 );
+            } );
+            threads.add( thread );
+            thread.start();
+        }
+        while( counters.get( 0 ) == 0 ) Thread.onSpinWait();
+
+        for( var size = 2; size <= 50; size++ ) {
+            var other = new LongCounters( size );
+            for( var i = 0; i < size; i++ ) other.increment( i );
+            counters.merge( other );
+        }
+        for( var thread : threads ) thread.join();
+
+        assertThat( counters.size() ).isEqualTo( 50 );
+        assertThat( counters.get( 0 ) ).isEqualTo( 400_049L );
+        assertThat( counters.get( 1 ) ).isEqualTo( 49L );
+        assertThat( counters.get( 49 ) ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void nodeChildren() {
+        var node = new Node( 0, new MockValue() );
+        var children = new ArrayList<Node>();
+        for( var i = 0; i < Node.SMALL; i++ ) {
+            children.add( new Node( 0, new MockValue( i ) ) );
+            node.put( "k" + i, children.get( i ) );
+        }
+        assertThat( node.children() ).isInstanceOf( ArrayNodeMap.class ).hasSize( Node.SMALL );
+
+        var replaced = new Node( 0, new MockValue( 100 ) );
+        node.put( "k0", replaced );
+        assertThat( node.children() ).isInstanceOf( ArrayNodeMap.class ).hasSize( Node.SMALL );
+        assertThat( node.child( "k0" ) ).isSameAs( replaced );
+        assertThat( node.remove( "k0", children.get( 0 ) ) ).isFalse();
+        assertThat( node.child( "k0", k -> new Node( 0, new MockValue() ) ) ).isSameAs( replaced );
+
+        var hashed = new Node( 0, new MockValue() );
+        hashed.put( "extra", new Node( 0, new MockValue() ) );
+        node.children().forEach( hashed::put );
+        assertThat( hashed.children() ).isInstanceOf( ConcurrentHashMap.class );
+        assertThat( hashed.remove( "extra", hashed.child( "extra" ) ) ).isTrue();
+        assertThat( hashed ).isEqualTo( node );
+        assertThat( node ).isEqualTo( hashed );
+        assertThat( node.hashCode() ).isEqualTo( hashed.hashCode() );
+
+        var json = Binder.json.unmarshal( Node.class, Binder.json.marshal( node ) );
+        assertThat( json.children() ).isInstanceOf( ArrayNodeMap.class );
+        assertThat( json ).isEqualTo( node );
+
+        node.child( "k" + Node.SMALL, k -> new Node( 0, new MockValue() ) );
+        assertThat( node.children() ).isInstanceOf( ConcurrentHashMap.class ).hasSize( Node.SMALL + 1 );
+        assertThat( node.child( "k1" ) ).isSameAs( children.get( 1 ) );
+
+        json = Binder.json.unmarshal( Node.class, Binder.json.marshal( node ) );
+        assertThat( json.children() ).isInstanceOf( ConcurrentHashMap.class );
+        assertThat( json ).isEqualTo( node );
+
+        var small = new Node( 0, new MockValue() );
+        small.put( "k1", children.get( 1 ) );
+        small.put( "k2", children.get( 2 ) );
+        assertThat( small.remove( "k1", children.get( 1 ) ) ).isTrue();
+        assertThat( small.remove( "k2", children.get( 2 ) ) ).isTrue();
+        assertThat( small.children() ).isEmpty();
+        assertThat( small.child( "k2" ) ).isNull();
+        assertThat( small.remove( "k2", children.get( 2 ) ) ).isFalse();
+        small.put( "k3", children.get( 3 ) );
+        assertThat( small.children() ).isInstanceOf( ArrayNodeMap.class ).hasSize( 1 );
+    }
+
     @Test
     public void mergeChild() {
         try( var master = new StatsDBMaster( schema3, StatsDBStorage.NULL );
@@ -139,6 +239,29 @@ public class StatsDBTest extends Fixtures {
         }
     }
 
+    @Test
+    public void parallelMerge() {
+        try( var master = new StatsDBMaster( schema3, StatsDBStorage.NULL, 4 );
+             var node = new StatsDBNode( schema3, new StatsDBTransportMock( master ) ) ) {
+            master.mergeBatchSize = 3;
+
+            for( var i = 0; i < 10; i++ ) {
+                for( var j = 0; j < 10; j++ ) {
+                    node.<MockValue>update( "p" + i, "c" + j, "c", c -> c.v += 1 );
+                    node.<MockChild2>update( "p" + i, "c" + j, c -> c.vc += 2 );
+                }
+            }
+            node.sync();
+            node.sync();
+
+            for( var i = 0; i < 10; i++ ) {
+                assertThat( master.<MockChild1>get( "p" + i ).sum ).isEqualTo( 10L );
+                assertThat( master.<MockChild1>get( "p" + i ).sum2 ).isEqualTo( 20L );
+                assertThat( master.<MockValue>get( "p" + i, "c9", "c" ).v ).isEqualTo( 1L );
+            }
+        }
+    }
+
     @Test
     public void persistMaster() {
         try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
@@ -158,6 +281,157 @@ public class StatsDBTest extends Fixtures {
         }
     }
 
+    @Test
+    public void storeModified() {
+        try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
+             StatsDBMaster master = new StatsDBMaster( schema3, masterStorage ) ) {
+            master.<MockValue>update( "k1", "k2", "k3", c -> c.v += 8 );
+            master.<MockValue>update( "k1", "k2", "k33", c -> c.v += 1 );
+            master.run();
+
+            master.<MockValue>update( "k1", "k2", "k3", c -> c.v += 2 );
+
+            assertThat( masterStorage.store( schema3, master.db, List.of( new NodeId( "k1", "k2", "k3" ), new NodeId( "k1", "unknown" ) ), bulk -> {} ) )
+                .isEqualTo( 1 );
+        }
+
+        try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
+             StatsDBMaster master = new StatsDBMaster( schema3, masterStorage ) ) {
+            assertThat( master.<MockValue>get( "k1", "k2", "k3" ).v ).isEqualTo( 10 );
+            assertThat( master.<MockValue>get( "k1", "k2", "k33" ).v ).isEqualTo( 1 );
+            assertThat( master.<MockChild1>get( "k1" ).sum ).isEqualTo( 11L );
+        }
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void modifiedIds() {
+        try( var master = new StatsDBMaster( schema3, StatsDBStorage.NULL ) ) {
+            master.<MockValue>update( "k1", "k2", "k3", c -> c.v += 1 );
+
+            var storage = new StatsDBStorageMongo( ( MongoCollection<MongoNode> ) null );
+            var all = new ArrayList<List<Map.Entry<String, String>>>();
+            storage.store( schema3, master.db, models -> models.forEach( model ->
+                all.add( List.copyOf( ( ( ReplaceOneModel<MongoNode> ) model ).getReplacement()._id.entrySet() ) ) ) );
+            var modified = new ArrayList<List<Map.Entry<String, String>>>();
+            storage.store( schema3, master.db, List.of( new NodeId( "k1" ), new NodeId( "k1", "k2" ), new NodeId( "k1", "k2", "k3" ) ),
+                models -> models.forEach( model ->
+                    modified.add( List.copyOf( ( ( ReplaceOneModel<MongoNode> ) model ).getReplacement()._id.entrySet() ) ) ) );
+
+            assertThat( modified ).hasSize( 3 ).isEqualTo( all );
+        }
+    }
+
+    @Test
+    public void parallelLoad() {
+        try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
+             StatsDBMaster master = new StatsDBMaster( schema3, masterStorage ) ) {
+            for( var i = 0; i < 10; i++ ) {
+                master.<MockValue>update( "k" + i, "k2", "k3", c -> c.v += 8 );
+                master.<MockValue>update( "k" + i, "k2", "k33", c -> c.v += 1 );
+                master.<MockChild1>update( "k" + i, c -> c.vc += 111 );
+            }
+        }
+
+        var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
+        masterStorage.loadThreads = 4;
+        masterStorage.loadBatchSize = 2;
+        masterStorage.createIndexOnLoad = true;
+        try( masterStorage; StatsDBMaster master = new StatsDBMaster( schema3, masterStorage, 4 ) ) {
+            for( var i = 0; i < 10; i++ ) {
+                assertThat( master.<MockValue>get( "k" + i, "k2", "k3" ).v ).isEqualTo( 8 );
+                assertThat( master.<MockChild1>get( "k" + i ).vc ).isEqualTo( 111 );
+                assertThat( master.<MockChild1>get( "k" + i ).sum ).isEqualTo( 9L );
+            }
+        }
+    }
+
+    @Test
+    public void fileStorage() throws IOException {
+        var path = testPath( "statsdb/snapshot" );
+
+        try( StatsDBMaster master = new StatsDBMaster( schema3, new StatsDBStorageFile( path ) ) ) {
+            master.<MockValue>update( "k1", "k2", "k3", c -> c.v += 8 );
+            master.<MockValue>update( "k1", "k2", "k33", c -> c.v += 1 );
+            master.<MockChild1>update( "k1", c -> c.vc += 111 );
+        }
+
+        try( StatsDBMaster master = new StatsDBMaster( schema3, new StatsDBStorageFile( path ) ) ) {
+            assertThat( master.<MockValue>get( "k1", "k2", "k3" ).v ).isEqualTo( 8 );
+            assertThat( master.<MockChild1>get( "k1" ).vc ).isEqualTo( 111 );
+            assertThat( master.<MockChild1>get( "k1" ).sum ).isEqualTo( 9L );
+        }
+
+        var bytes = Files.readAllBytes( path );
+        bytes[bytes.length / 2] ^= 1;
+        Files.write( path, bytes );
+
+        assertThatThrownBy( () -> new StatsDBStorageFile( path ).load( schema3 ) )
+            .hasMessageContaining( "checksum mismatch" );
+    }
+
+    @Test
+    public void walReplay() throws IOException {
+        var walPath = testPath( "wal" );
+
+        var wal = new StatsDBWal( walPath );
+        var master = new StatsDBMaster( schema2, StatsDBStorage.NULL, 1, wal );
+        var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ) );
+        node.<MockValue>update( "k1", "k2", c -> c.v += 10 );
+        node.<MockChild2>update( "k1", c -> c.vc += 20 );
+        node.sync();
+        wal.close();
+
+        try( var restarted = new StatsDBMaster( schema2, StatsDBStorage.NULL, 1, new StatsDBWal( walPath ) ) ) {
+            assertThat( restarted.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 10 );
+            assertThat( restarted.<MockChild2>get( "k1" ).vc ).isEqualTo( 20 );
+            assertThat( restarted.<MockChild2>get( "k1" ).sum ).isEqualTo( 10L );
+
+            restarted.run();
+        }
+
+        try( var restarted = new StatsDBMaster( schema2, StatsDBStorage.NULL, 1, new StatsDBWal( walPath ) ) ) {
+            assertThat( restarted.<MockValue>get( "k1", "k2" ) ).isNull();
+        }
+    }
+
+    @Test
+    public void walCorruptRecord() throws IOException {
+        var walPath = testPath( "wal-corrupt" );
+
+        var wal = new StatsDBWal( walPath );
+        var master = new StatsDBMaster( schema2, StatsDBStorage.NULL, 1, wal );
+        assertThatThrownBy( () -> master.update( SyncCodec.JSON, "{\"data\":[{".getBytes( UTF_8 ), "host" ) )
+            .isInstanceOf( IOException.class );
+        wal.append( "host", "not a sync".getBytes( UTF_8 ) );
+        var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ) );
+        node.<MockValue>update( "k1", "k2", c -> c.v += 10 );
+        node.sync();
+        wal.close();
+
+        try( var restarted = new StatsDBMaster( schema2, StatsDBStorage.NULL, 1, new StatsDBWal( walPath ) ) ) {
+            assertThat( restarted.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 10 );
+        }
+    }
+
+    @Test
+    public void bsonValueMapping() {
+        Map<Class<?>, BsonValueMapping<?>> mappings = Map.of( MockValue.class, new MockValueMapping() );
+
+        try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test", mappings );
+             StatsDBMaster master = new StatsDBMaster( schema3, masterStorage ) ) {
+            master.<MockValue>update( "k1", "k2", "k3", c -> c.v += 10 );
+            master.<MockChild1>update( "k1", c -> c.vc += 111 );
+        }
+
+        try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
+             StatsDBMaster master = new StatsDBMaster( schema3, masterStorage ) ) {
+            assertThat( master.<MockValue>get( "k1", "k2", "k3" ).v ).isEqualTo( 10 );
+            assertThat( master.<MockChild1>get( "k1" ).vc ).isEqualTo( 111 );
+            assertThat( master.<MockChild1>get( "k1" ).sum ).isEqualTo( 10L );
+        }
+    }
+
     @Test
     public void sync() {
         try( var masterStorage = new StatsDBStorageMongo( MONGO_FIXTURE.client(), "test" );
@@ -218,6 +492,549 @@ public class StatsDBTest extends Fixtures {
         }
 
         assertThat( transport.syncs ).hasSize( 1 );
+        assertThat( transport.syncs.get( 0 ).data ).hasSize( 1 );
+        assertThat( ( ( MockValue ) transport.syncs.get( 0 ).data.get( 0 ).node.v ).v ).isEqualTo( 20L );
+    }
+
+    @Test
+    public void stripedUpdate() throws InterruptedException {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ), Cuid.UNIQUE, 4 ) ) {
+
+            var threads = new ArrayList<Thread>();
+            for( var i = 0; i < 8; i++ ) {
+                var thread = new Thread( () -> {
+                    for( var j = 0; j < 1000; j++ ) node.<MockValue>update( "k1", "k2", c -> c.v += 1 );
+                } );
+                threads.add( thread );
+                thread.start();
+            }
+            for( var thread : threads ) thread.join();
+
+            assertThat( node.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 8000L );
+
+            node.sync();
+            assertThat( node.<MockValue>get( "k1", "k2" ) ).isNull();
+            assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 8000L );
+        }
+    }
+
+    @Test
+    public void concurrentValues() throws InterruptedException {
+        var schema = new NodeSchema(
+            nc( "n1", LongMax.class, new LongMax.Serializer() ),
+            nc( "n2", LongCounter.class, new LongCounter.Serializer() ) );
+
+        try( var master = new StatsDBMaster( schema, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema, new StatsDBTransportMock( master ) ) ) {
+
+            var threads = new ArrayList<Thread>();
+            for( var i = 0; i < 8; i++ ) {
+                var max = i;
+                var thread = new Thread( () -> {
+                    for( var j = 0; j < 1000; j++ ) {
+                        node.<LongCounter>update( "k1", "k2", LongCounter::increment );
+                        node.<LongMax>update( "k1", c -> c.update( max ) );
+                    }
+                } );
+                threads.add( thread );
+                thread.start();
+            }
+            for( var thread : threads ) thread.join();
+
+            node.sync();
+            node.<LongMax>update( "k1", c -> c.update( 3 ) );
+            node.<LongCounter>update( "k1", "k2", c -> c.add( 2 ) );
+            node.sync();
+
+            assertThat( master.<LongCounter>get( "k1", "k2" ).get() ).isEqualTo( 8002L );
+            assertThat( master.<LongMax>get( "k1" ).get() ).isEqualTo( 7L );
+        }
+    }
+
+    @Test
+    public void sketches() {
+        var schema = new NodeSchema(
+            nc( "n1", HyperLogLog.class, new HyperLogLog.Serializer() ),
+            nc( "n2", HyperLogLog.class, new HyperLogLog.Serializer() ),
+            nc( "n3", QuantileSketch.class, new QuantileSketch.Serializer() ) );
+
+        try( var master = new StatsDBMaster( schema, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema, new StatsDBTransportMock( master ) ) ) {
+
+            for( var i = 0; i < 10000; i++ ) {
+                var user = "u" + i;
+                node.<HyperLogLog>update( "k1", "k2", c -> c.add( user ) );
+                node.<HyperLogLog>update( "k1", "k3", c -> c.add( user ) );
+                node.<QuantileSketch>update( "k1", "k2", "k4", c -> c.add( 1 + user.length() ) );
+            }
+            node.sync();
+            for( var i = 0; i < 1000; i++ ) {
+                var value = i;
+                node.<QuantileSketch>update( "k1", "k2", "k5", c -> c.add( value ) );
+            }
+            node.sync();
+
+            assertThat( master.<HyperLogLog>get( "k1", "k2" ).count() ).isBetween( 9700L, 10300L );
+            assertThat( master.<HyperLogLog>get( "k1" ).count() ).isBetween( 9700L, 10300L );
+
+            QuantileSketch sketch = master.get( "k1", "k2", "k5" );
+            assertThat( sketch.count() ).isEqualTo( 1000L );
+            assertThat( sketch.quantile( 0.5 ) ).isCloseTo( 499, within( 5.0 ) );
+            assertThat( master.<QuantileSketch>get( "k1", "k2", "k4" ).quantile( 1 ) ).isCloseTo( 6, within( 0.06 ) );
+        }
+    }
+
+    @Test
+    public void rollingWindow() {
+        var schema = new NodeSchema(
+            nc( "n1", MockValue.class ),
+            NodeSchema.window( "n2", Duration.ofMinutes( 1 ), 10 ) );
+        var minute = Duration.ofMinutes( 1 ).toMillis();
+
+        try( var master = new StatsDBMaster( schema, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema, new StatsDBTransportMock( master ) ) ) {
+
+            for( var i = 0; i < 15; i++ ) {
+                var time = i * minute;
+                node.<RollingWindow>update( "k1", "k2", c -> c.add( time, 1 ) );
+                node.<RollingWindow>update( "k1", "k3", c -> c.add( time, 2 ) );
+                if( i % 5 == 4 ) node.sync();
+            }
+
+            RollingWindow window = master.get( "k1", "k2" );
+            assertThat( window.slots ).hasSize( 10 );
+            assertThat( window.sum( 14 * minute, Duration.ofMinutes( 5 ) ) ).isEqualTo( 5L );
+            assertThat( window.sum( 14 * minute, Duration.ofHours( 1 ) ) ).isEqualTo( 10L );
+            assertThat( window.sum( 20 * minute, Duration.ofMinutes( 10 ) ) ).isEqualTo( 4L );
+            assertThat( master.<RollingWindow>get( "k1", "k3" ).sum( 14 * minute, Duration.ofMinutes( 3 ) ) ).isEqualTo( 6L );
+        }
+    }
+
+    @Test
+    public void evict() {
+        var schema = new NodeSchema(
+            nc( "n1", MockChild1.class ),
+            nc( "n2", MockChild2.class ).ttl( Duration.ofMinutes( 10 ) ),
+            nc( "n3", MockValue.class ).ttl( Duration.ofMinutes( 10 ) ) );
+        var minute = Duration.ofMinutes( 1 ).toMillis();
+
+        var stored = new ArrayList<NodeId>();
+        var storage = new StatsDBStorageNull() {
+            @Override
+            public void store( NodeSchema schema, Map<String, Node> db, Collection<NodeId> modified ) {
+                stored.addAll( modified );
+            }
+        };
+
+        DateTimeUtils.setCurrentMillisFixed( minute );
+        try( var master = new StatsDBMaster( schema, storage );
+             var node = new StatsDBNode( schema, new StatsDBTransportMock( master ) ) ) {
+
+            node.<MockValue>update( "k1", "k2", "k3", c -> c.v += 1 );
+            node.<MockValue>update( "k1", "k2", "k4", c -> c.v += 2 );
+            node.<MockValue>update( "k1", "k5", "k6", c -> c.v += 3 );
+            node.sync();
+            master.run();
+
+            DateTimeUtils.setCurrentMillisFixed( 8 * minute );
+            node.<MockValue>update( "k1", "k2", "k4", c -> c.v += 2 );
+            node.sync();
+
+            DateTimeUtils.setCurrentMillisFixed( 15 * minute );
+            master.run();
+
+            assertThat( master.<MockValue>get( "k1", "k2", "k3" ) ).isNull();
+            assertThat( master.<MockValue>get( "k1", "k2", "k4" ).v ).isEqualTo( 4L );
+            assertThat( master.<MockChild2>get( "k1", "k5" ) ).isNull();
+            assertThat( master.<MockChild2>get( "k1", "k2" ).sum ).isEqualTo( 4L );
+            assertThat( master.<MockChild1>get( "k1" ).sum ).isEqualTo( 4L );
+
+            stored.clear();
+            DateTimeUtils.setCurrentMillisFixed( 30 * minute );
+            master.run();
+
+            assertThat( stored ).contains( new NodeId( "k1", "k2" ), new NodeId( "k1" ) );
+
+            assertThat( master.<MockChild2>get( "k1", "k2" ) ).isNull();
+            assertThat( master.<MockChild1>get( "k1" ).sum ).isEqualTo( 0L );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void internKeys() {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL ) ) {
+            for( var i = 0; i < 2; i++ ) {
+                var data = new ArrayList<Sync.NodeIdNode>();
+                data.add( new Sync.NodeIdNode( new NodeId( new String( "k1" ), new String( "k2" ) ), new Node( new MockValue( 1 ) ) ) );
+                master.update( new Sync( data, "s" + i ), "host" );
+            }
+
+            assertThat( master.db.keySet().iterator().next() ).isSameAs( Symbols.intern( "k1" ) );
+            assertThat( master.getNode( "k1" ).children().keySet().iterator().next() ).isSameAs( Symbols.intern( "k2" ) );
+            assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 2L );
+        }
+    }
+
+    @Test
+    public void query() {
+        try( var master = new StatsDBMaster( schema3, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema3, new StatsDBTransportMock( master ) ) ) {
+
+            node.<MockValue>update( "k1", "k2", "k3", c -> c.v += 1 );
+            node.<MockValue>update( "k1", "k2", "k4", c -> c.v += 2 );
+            node.<MockValue>update( "k1", "k5", "k6", c -> c.v += 3 );
+            node.<MockValue>update( "k7", "k2", "k8", c -> c.v += 4 );
+            node.sync();
+
+            assertThat( master.query( 3 ).stream( Cursor::nodeId ) ).hasSize( 4 );
+            assertThat( master.query( 3 ).prefix( "k1" ).where( 1, ( String key, MockChild2 v ) -> key.equals( "k2" ) )
+                .stream( c -> c.<MockValue>value( 2 ).v ) ).containsOnly( 1L, 2L );
+            assertThat( master.query( 3 ).prefix( "k1", "k5", "k6" ).stream( Cursor::nodeId ) )
+                .containsExactly( new NodeId( "k1", "k5", "k6" ) );
+            assertThat( master.query( 2 ).stream( c -> c.key( 0 ) + "/" + c.key( 1 ) ).parallel() )
+                .containsOnly( "k1/k2", "k1/k5", "k7/k2" );
+
+            var visited = new ArrayList<NodeId>();
+            assertThat( master.query( 3 ).forEach( c -> visited.add( c.nodeId() ) && visited.size() < 2 ) ).isFalse();
+            assertThat( visited ).hasSize( 2 );
+        }
+    }
+
+    @Test
+    public void queryLimit() {
+        try( var master = new StatsDBMaster( schema3, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema3, new StatsDBTransportMock( master ) ) ) {
+
+            for( var i = 0; i < 100; i++ ) node.<MockValue>update( "k1", "k2", "k" + i, c -> c.v += 1 );
+            node.sync();
+
+            var mapped = new AtomicInteger();
+            assertThat( master.query( 3 ).stream( c -> mapped.incrementAndGet() ).limit( 2 ) ).hasSize( 2 );
+            assertThat( mapped.get() ).isEqualTo( 2 );
+
+            mapped.set( 0 );
+            assertThat( master.query( 3 ).stream( c -> mapped.incrementAndGet() ).findFirst() ).contains( 1 );
+            assertThat( mapped.get() ).isEqualTo( 1 );
+        }
+    }
+
+    @Test
+    public void top() {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ) ) ) {
+
+            for( var i = 0; i < 1000; i++ ) {
+                var v = ( i * 7919 ) % 1000;
+                node.<MockValue>update( "k1", "c" + i, c -> c.v += v );
+            }
+            node.sync();
+
+            assertThat( master.<MockValue>topBy( 3, c -> c.v, false, "k1" ).stream().map( e -> e.getValue().v ) )
+                .containsExactly( 999L, 998L, 997L );
+            assertThat( master.<MockValue>top( 2, Comparator.comparingLong( c -> -c.v ), true, "k1" ).stream().map( e -> e.getValue().v ) )
+                .containsExactly( 0L, 1L );
+            assertThat( master.<MockChild2>topBy( 5, c -> c.vc, false ).stream().map( Map.Entry::getKey ) ).containsExactly( "k1" );
+            assertThat( master.<MockValue>topBy( 5, c -> c.v, false, "unknown" ) ).isEmpty();
+        }
+    }
+
+    @Test
+    public void index() {
+        var schema = new NodeSchema(
+            nc( "n1", MockChild1.class ),
+            nc( "n2", MockChild2.class ).indexed(),
+            nc( "n3", MockValue.class ).indexed().ttl( Duration.ofMinutes( 10 ) ) );
+        var minute = Duration.ofMinutes( 1 ).toMillis();
+
+        DateTimeUtils.setCurrentMillisFixed( minute );
+        try( var master = new StatsDBMaster( schema, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema, new StatsDBTransportMock( master ) ) ) {
+
+            node.<MockValue>update( "k1", "k2", "k3", c -> c.v += 1 );
+            node.<MockValue>update( "k4", "k2", "k3", c -> c.v += 2 );
+            node.<MockValue>update( "k4", "k5", "k3", c -> c.v += 3 );
+            node.sync();
+
+            assertThat( master.find( 1, "k2" ) ).containsOnly( new NodeId( "k1", "k2" ), new NodeId( "k4", "k2" ) );
+            assertThat( master.find( 2, "k3" ) ).hasSize( 3 );
+            assertThat( master.find( 2, "unknown" ) ).isEmpty();
+            assertThatThrownBy( () -> master.find( 0, "k1" ) ).isInstanceOf( IllegalArgumentException.class );
+
+            master.run();
+            DateTimeUtils.setCurrentMillisFixed( 8 * minute );
+            node.<MockValue>update( "k4", "k5", "k3", c -> c.v += 3 );
+            node.sync();
+
+            DateTimeUtils.setCurrentMillisFixed( 15 * minute );
+            master.run();
+
+            assertThat( master.find( 2, "k3" ) ).containsOnly( new NodeId( "k4", "k5", "k3" ) );
+            assertThat( master.find( 1, "k2" ) ).containsOnly( new NodeId( "k1", "k2" ), new NodeId( "k4", "k2" ) );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void readView() {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ) ) ) {
+
+            node.<MockValue>update( "k1", "k2", c -> c.v += 1 );
+            node.sync();
+
+            try( var view = master.view() ) {
+                node.<MockValue>update( "k1", "k2", c -> c.v += 2 );
+                node.<MockValue>update( "k1", "k3", c -> c.v += 3 );
+                node.<MockValue>update( "k4", "k5", c -> c.v += 4 );
+                node.sync();
+
+                assertThat( view.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 1L );
+                assertThat( view.<MockChild2>get( "k1" ).sum ).isEqualTo( 1L );
+                assertThat( view.<MockValue>get( "k1", "k3" ) ).isNull();
+                assertThat( view.<MockChild2>get( "k4" ) ).isNull();
+                assertThat( view.<MockValue>children( "k1" ).map( c -> c.v ) ).containsExactly( 1L );
+                assertThat( view.query( 2 ).stream( Cursor::nodeId ) ).containsExactly( new NodeId( "k1", "k2" ) );
+
+                assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 3L );
+                assertThat( master.<MockChild2>get( "k1" ).sum ).isEqualTo( 6L );
+            }
+
+            assertThat( master.query( 2 ).stream( Cursor::nodeId ) ).hasSize( 3 );
+        }
+    }
+
+    @Test
+    public void valueCopy() {
+        var counter = new LongCounter( 1 );
+        var counterCopy = counter.copy();
+        counter.increment();
+        assertThat( counterCopy.get() ).isEqualTo( 1L );
+
+        var counters = new LongCounters( 2 );
+        counters.add( 1, 5 );
+        var countersCopy = counters.copy();
+        counters.increment( 1 );
+        assertThat( countersCopy.get() ).containsExactly( 0L, 5L );
+
+        var hll = new HyperLogLog();
+        hll.add( "a" );
+        var hllCopy = hll.copy();
+        assertThat( hllCopy ).isEqualTo( hll );
+        hll.add( "b" );
+        assertThat( hllCopy.count() ).isEqualTo( 1L );
+
+        var window = new RollingWindow( 1000, 10 );
+        window.add( 5_000, 3 );
+        var windowCopy = window.copy();
+        window.add( 5_000, 4 );
+        assertThat( windowCopy.sum( 5_000, Duration.ofSeconds( 10 ) ) ).isEqualTo( 3L );
+    }
+
+    @Test
+    public void overlappingViews() {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ) ) ) {
+
+            node.<MockValue>update( "k1", "k2", c -> c.v += 1 );
+            node.sync();
+
+            var view1 = master.view();
+            node.<MockValue>update( "k1", "k2", c -> c.v += 2 );
+            node.sync();
+            var view2 = master.view();
+            node.<MockValue>update( "k1", "k2", c -> c.v += 4 );
+            node.sync();
+
+            assertThat( view1.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 1L );
+            assertThat( view2.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 3L );
+            assertThat( master.getNode( "k1", "k2" ).history.older ).isNotNull();
+
+            view1.close();
+            assertThat( view2.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 3L );
+            assertThat( master.getNode( "k1", "k2" ).history.older ).isNull();
+
+            view2.close();
+            assertThat( master.getNode( "k1", "k2" ).history ).isNull();
+            assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 7L );
+        }
+    }
+
+    @Test
+    public void pending() {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ), Cuid.UNIQUE, 2 ) ) {
+
+            node.<MockValue>update( "k1", "k2", c -> c.v += 1 );
+            node.<MockValue>update( "k1", "k3", c -> c.v += 1 );
+            node.<MockValue>update( "k1", "k3", c -> c.v += 1 );
+            assertThat( node.pending() ).isEqualTo( 2 );
+
+            node.sync();
+            assertThat( node.pending() ).isEqualTo( 0 );
+        }
+    }
+
+    @Test
+    public void syncUnderLoad() throws InterruptedException {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema2, new StatsDBTransportMock( master ), Cuid.UNIQUE, 2 ) ) {
+            NodeHandle<MockValue> bound = node.bind( "k1", "k3" );
+
+            var threads = new ArrayList<Thread>();
+            for( var i = 0; i < 4; i++ ) {
+                var thread = new Thread( () -> {
+                    for( var j = 0; j < 10000; j++ ) {
+                        node.<MockValue>update( "k1", "k2", c -> c.v += 1 );
+                        bound.update( c -> c.v += 1 );
+                    }
+                } );
+                threads.add( thread );
+                thread.start();
+            }
+
+            for( var i = 0; i < 20; i++ ) node.sync();
+            for( var thread : threads ) thread.join();
+            node.sync();
+
+            assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 40000L );
+            assertThat( master.<MockValue>get( "k1", "k3" ).v ).isEqualTo( 40000L );
+        }
+    }
+
+    @Test
+    public void boundUpdate() {
+        try( var master = new StatsDBMaster( schema3, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema3, new StatsDBTransportMock( master ) ) ) {
+
+            NodeHandle<MockValue> c3 = node.bind( "p1", "c2", "c3" );
+            NodeHandle<MockChild2> c2 = node.bind( "p1", "c2" );
+
+            c3.update( c -> c.v += 2 );
+            c3.update( c -> c.v += 3 );
+            c2.update( c -> c.vc += 1 );
+            assertThat( node.<MockValue>get( "p1", "c2", "c3" ).v ).isEqualTo( 5L );
+            node.sync();
+
+            c3.update( c -> c.v += 1 );
+            assertThat( node.<MockValue>get( "p1", "c2", "c3" ).v ).isEqualTo( 1L );
+            node.sync();
+
+            assertThat( master.<MockValue>get( "p1", "c2", "c3" ).v ).isEqualTo( 6L );
+            assertThat( master.<MockChild2>get( "p1", "c2" ).vc ).isEqualTo( 1L );
+            assertThat( master.<MockChild2>get( "p1", "c2" ).sum ).isEqualTo( 6L );
+        }
+    }
+
+    @Test
+    public void binarySync() {
+        var schema = new NodeSchema(
+            nc( "n1", MockChild2.class ),
+            nc( "n2", MockValue.class, new MockValueSerializer() ) );
+        var codec = new BinarySyncCodec( schema );
+
+        try( var master = new StatsDBMaster( schema, StatsDBStorage.NULL );
+             var node = new StatsDBNode( schema, sync -> {
+                 var data = codec.encode( sync );
+                 assertThat( BinarySyncCodec.isBinary( data ) ).isTrue();
+                 assertThat( data.length ).isLessThan( SyncCodec.JSON.encode( sync ).length );
+
+                 master.update( codec.decode( data ), "host" );
+             } ) ) {
+            node.<MockValue>update( "k1", "k2", c -> c.v += 10 );
+            node.<MockValue>update( "k1", "k3", c -> c.v += 1 );
+            node.<MockChild2>update( "k1", c -> c.vc += 20 );
+            node.sync();
+
+            assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 10L );
+            assertThat( master.<MockValue>get( "k1", "k3" ).v ).isEqualTo( 1L );
+            assertThat( master.<MockChild2>get( "k1" ).vc ).isEqualTo( 20L );
+            assertThat( master.<MockChild2>get( "k1" ).sum ).isEqualTo( 11L );
+        }
+    }
+
+    @Test
+    public void malformedBinarySync() throws IOException {
+        var codec = new BinarySyncCodec( schema2 );
+        var empty = codec.encode( new Sync( new ArrayList<>(), "1" ) );
+        var beforeKeys = Arrays.copyOf( empty, empty.length - 2 );
+        var beforeNodes = Arrays.copyOf( empty, empty.length - 1 );
+
+        assertThat( codec.decode( empty ).data ).isEmpty();
+        assertThatThrownBy( () -> codec.decode( withVarInt( beforeKeys, -1 ) ) ).isInstanceOf( IllegalStateException.class );
+        assertThatThrownBy( () -> codec.decode( withVarInt( beforeKeys, 1_000_000_000 ) ) ).isInstanceOf( IllegalStateException.class );
+        assertThatThrownBy( () -> codec.decode( withVarInt( beforeNodes, -1 ) ) ).isInstanceOf( IllegalStateException.class );
+        assertThatThrownBy( () -> codec.decode( withVarInt( beforeNodes, 1_000_000_000 ) ) ).isInstanceOf( IllegalStateException.class );
+    }
+
+    private static byte[] withVarInt( byte[] prefix, int value ) throws IOException {
+        var out = new ByteArrayOutputStream();
+        out.write( prefix );
+        Varints.writeVarInt( new DataOutputStream( out ), value );
+
+        return out.toByteArray();
+    }
+
+    @Test
+    public void truncatedSync() {
+        var codec = new BinarySyncCodec( schema2 );
+
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL ) ) {
+            var data = new ArrayList<Sync.NodeIdNode>();
+            data.add( new Sync.NodeIdNode( new NodeId( "k1", "k2" ), new Node( new MockValue( 10 ) ) ) );
+            data.add( new Sync.NodeIdNode( new NodeId( "k3", "k4" ), new Node( new MockValue( 20 ) ) ) );
+            var encoded = codec.encode( new Sync( data, "1" ) );
+
+            assertThatThrownBy( () -> master.update( codec, Arrays.copyOf( encoded, encoded.length - 2 ), "host" ) )
+                .isInstanceOf( IOException.class );
+            assertThat( master.<MockValue>get( "k1", "k2" ) ).isNull();
+            assertThat( master.<MockChild2>get( "k1" ) ).isNull();
+
+            master.update( codec, encoded, "host" );
+            assertThat( master.<MockValue>get( "k1", "k2" ).v ).isEqualTo( 10L );
+        }
+    }
+
+    @Test
+    public void boundedMerge() {
+        try( var master = new StatsDBMaster( schema2, StatsDBStorage.NULL ) ) {
+            master.mergeBatchSize = 100;
+
+            var passes = new AtomicInteger();
+            var buffered = new AtomicInteger();
+            var codec = new SyncCodec() {
+                @Override
+                public byte[] encode( Sync sync ) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Sync decode( byte[] data ) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public String decode( byte[] data, BiConsumer<NodeId, Node> consumer ) {
+                    var merging = passes.incrementAndGet() > 1;
+                    for( var i = 0; i < 10_000; i++ ) {
+                        if( merging ) buffered.accumulateAndGet( i - master.db.size(), Math::max );
+                        consumer.accept( new NodeId( "r" + i, "c" ), new Node( new MockValue( 1 ) ) );
+                    }
+
+                    return "1";
+                }
+            };
+
+            master.update( codec, new byte[0], "host" );
+
+            assertThat( passes.get() ).isEqualTo( 2 );
+            assertThat( buffered.get() ).isLessThanOrEqualTo( 100 );
+            assertThat( master.db ).hasSize( 10_000 );
+            assertThat( master.<MockValue>get( "r9999", "c" ).v ).isEqualTo( 1L );
+        }
     }
 
     @Test
@@ -273,6 +1090,43 @@ public class StatsDBTest extends Fixtures {
 
             return this;
         }
+
+        @Override
+        public MockValue copy() {
+            return new MockValue( v );
+        }
+    }
+
+    public static class MockValueSerializer implements ValueSerializer<MockValue> {
+        private static final long serialVersionUID = -1417926378516036449L;
+
+        @Override
+        public void write( DataOutput out, MockValue value ) throws IOException {
+            Varints.writeSignedVarLong( out, value.v );
+        }
+
+        @Override
+        public MockValue read( DataInput in ) throws IOException {
+            return new MockValue( Varints.readSignedVarLong( in ) );
+        }
+    }
+
+    public static class MockValueMapping implements BsonValueMapping<MockValue> {
+        @Override
+        public void write( BsonWriter writer, MockValue value ) {
+            writer.writeInt64( "v", value.v );
+        }
+
+        @Override
+        public MockValue read( BsonReader reader ) {
+            var value = new MockValue();
+            while( reader.readBsonType() != BsonType.END_OF_DOCUMENT ) {
+                if( "v".equals( reader.readName() ) ) value.v = reader.readInt64();
+                else reader.skipValue();
+            }
+
+            return value;
+        }
     }
 
     @ToString
@@ -0,0 +1,134 @@
+package oap.statsdb;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable children of a node with a few of them, two arrays scanned linearly instead of a hash table. The node
+ * replaces the map with a changed copy under its lock, readers see either the old or the new one.
+ *
+ * @see Node#child(String, java.util.function.Function)
+ */
+final class ArrayNodeMap extends AbstractMap<String, Node> implements Serializable {
+    @Serial
+    private static final long serialVersionUID = -3187250926553213390L;
+
+    private final String[] keys;
+    private final Node[] nodes;
+
+    ArrayNodeMap( String key, Node node ) {
+        this( new String[] { key }, new Node[] { node } );
+    }
+
+    private ArrayNodeMap( String[] keys, Node[] nodes ) {
+        this.keys = keys;
+        this.nodes = nodes;
+    }
+
+    private int indexOf( Object key ) {
+        for( var i = 0; i < keys.length; i++ ) if( keys[i].equals( key ) ) return i;
+
+        return -1;
+    }
+
+    ArrayNodeMap with( String key, Node node ) {
+        var index = indexOf( key );
+        if( index >= 0 ) {
+            var newNodes = nodes.clone();
+            newNodes[index] = node;
+
+            return new ArrayNodeMap( keys, newNodes );
+        }
+
+        var newKeys = Arrays.copyOf( keys, keys.length + 1 );
+        var newNodes = Arrays.copyOf( nodes, nodes.length + 1 );
+        newKeys[keys.length] = key;
+        newNodes[nodes.length] = node;
+
+        return new ArrayNodeMap( newKeys, newNodes );
+    }
+
+    /**
+     * @return {@code null} if no children are left
+     */
+    ArrayNodeMap without( String key ) {
+        var index = indexOf( key );
+        if( index < 0 ) return this;
+        if( keys.length == 1 ) return null;
+
+        var newKeys = new String[keys.length - 1];
+        var newNodes = new Node[nodes.length - 1];
+        System.arraycopy( keys, 0, newKeys, 0, index );
+        System.arraycopy( nodes, 0, newNodes, 0, index );
+        System.arraycopy( keys, index + 1, newKeys, index, keys.length - index - 1 );
+        System.arraycopy( nodes, index + 1, newNodes, index, nodes.length - index - 1 );
+
+        return new ArrayNodeMap( newKeys, newNodes );
+    }
+
+    @Override
+    public Node get( Object key ) {
+        var index = indexOf( key );
+
+        return index >= 0 ? nodes[index] : null;
+    }
+
+    @Override
+    public boolean containsKey( Object key ) {
+        return indexOf( key ) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public void forEach( BiConsumer<? super String, ? super Node> action ) {
+        for( var i = 0; i < keys.length; i++ ) action.accept( keys[i], nodes[i] );
+    }
+
+    @Override
+    public Set<Entry<String, Node>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Node>> iterator() {
+                return new Iterator<>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    public Entry<String, Node> next() {
+                        if( index >= keys.length ) throw new NoSuchElementException();
+
+                        var entry = new SimpleImmutableEntry<>( keys[index], nodes[index] );
+                        index++;
+
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+}
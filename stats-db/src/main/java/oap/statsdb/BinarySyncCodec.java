@@ -0,0 +1,159 @@
+package oap.statsdb;
+
+import lombok.SneakyThrows;
+import oap.statsdb.RemoteStatsDB.Sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static oap.statsdb.Varints.readSignedVarLong;
+import static oap.statsdb.Varints.readVarInt;
+import static oap.statsdb.Varints.readVarLong;
+import static oap.statsdb.Varints.writeSignedVarLong;
+import static oap.statsdb.Varints.writeString;
+import static oap.statsdb.Varints.writeVarInt;
+import static oap.statsdb.Varints.writeVarLong;
+
+/**
+ * Compact {@link SyncCodec}. Every distinct key is written once per message, node ids refer to the key dictionary.
+ * <pre>
+ * 'S' 'D' 'B' version
+ * id
+ * varint key count, keys
+ * varint node count, nodes:
+ *   varint depth &lt;&lt; 1 | has value
+ *   depth x varint key index
+ *   varlong ct, signed varlong mt - ct
+ *   value: {@link ValueSerializer} of the level or length prefixed json
+ * </pre>
+ */
+public class BinarySyncCodec implements SyncCodec {
+    public static final byte VERSION = 1;
+    private static final byte[] MAGIC = { 'S', 'D', 'B' };
+
+    private final ValueSerializer<Node.Value>[] serializers;
+
+    public BinarySyncCodec( NodeSchema schema ) {
+        serializers = schema.serializers();
+    }
+
+    public static boolean isBinary( byte[] data ) {
+        return data.length > MAGIC.length && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2];
+    }
+
+    @Override
+    @SneakyThrows
+    public byte[] encode( Sync sync ) {
+        var keys = new LinkedHashMap<String, Integer>();
+        for( var nodeIdNode : sync.data ) {
+            for( var key : nodeIdNode.nodeId ) keys.putIfAbsent( key, keys.size() );
+        }
+
+        var bytes = new ByteArrayOutputStream( 32 + sync.data.size() * 16 );
+        var out = new DataOutputStream( bytes );
+
+        out.write( MAGIC );
+        out.writeByte( VERSION );
+        writeString( out, sync.id );
+
+        writeVarInt( out, keys.size() );
+        for( var key : keys.keySet() ) writeString( out, key );
+
+        writeVarInt( out, sync.data.size() );
+        for( var nodeIdNode : sync.data ) {
+            var nodeId = nodeIdNode.nodeId;
+            var node = nodeIdNode.node;
+
+            writeVarInt( out, nodeId.size() << 1 | ( node.v != null ? 1 : 0 ) );
+            for( var key : nodeId ) writeVarInt( out, keys.get( key ) );
+            writeVarLong( out, node.ct );
+            writeSignedVarLong( out, node.mt - node.ct );
+            if( node.v != null ) serializers[nodeId.size() - 1].write( out, node.v );
+        }
+
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Sync decode( byte[] data ) {
+        var nodes = new ArrayList<Sync.NodeIdNode>();
+        var id = decode( data, ( nodeId, node ) -> nodes.add( new Sync.NodeIdNode( nodeId, node ) ) );
+
+        return new Sync( nodes, id );
+    }
+
+    @Override
+    @SneakyThrows
+    public String decode( byte[] data, BiConsumer<NodeId, Node> consumer ) {
+        if( !isBinary( data ) ) throw new IllegalStateException( "not a binary sync" );
+
+        var in = new DataInputStream( new ByteArrayInputStream( data, MAGIC.length, data.length - MAGIC.length ) );
+
+        var version = in.readByte();
+        if( version != VERSION ) throw new IllegalStateException( "unsupported binary sync version " + version );
+
+        var id = readString( in );
+
+        var keys = new String[readCount( in, "key" )];
+        for( var i = 0; i < keys.length; i++ ) keys[i] = readString( in );
+
+        var size = readCount( in, "node" );
+        for( var i = 0; i < size; i++ ) {
+            var header = readVarInt( in );
+            var depth = header >>> 1;
+            if( depth < 1 || depth > serializers.length )
+                throw new IllegalStateException( "node depth " + depth + " is out of schema bounds [1.." + serializers.length + "]" );
+
+            var path = new String[depth];
+            for( var k = 0; k < depth; k++ ) {
+                var index = readVarInt( in );
+                if( index < 0 || index >= keys.length )
+                    throw new IllegalStateException( "key index '" + index + "' is out of bounds [0.." + keys.length + ")" );
+                path[k] = keys[index];
+            }
+
+            var ct = readVarLong( in );
+            var mt = ct + readSignedVarLong( in );
+            var v = ( header & 1 ) != 0 ? serializers[depth - 1].read( in ) : null;
+
+            consumer.accept( new NodeId( path ), new Node( mt, ct, v ) );
+        }
+
+        return id;
+    }
+
+    /**
+     * every element takes a byte at least, a count above the bytes left is corrupt
+     */
+    private static int readCount( DataInputStream in, String what ) throws IOException {
+        var count = readVarInt( in );
+        if( count < 0 || count > in.available() )
+            throw new IllegalStateException( what + " count '" + count + "' is out of bounds [0.." + in.available() + "]" );
+
+        return count;
+    }
+
+    /**
+     * {@link Varints#readString(java.io.DataInput)} with the length checked against the bytes left
+     */
+    private static String readString( DataInputStream in ) throws IOException {
+        var length = readVarInt( in );
+        if( length < 0 || length - 1 > in.available() )
+            throw new IllegalStateException( "string length '" + length + "' is out of bounds [0.." + ( in.available() + 1 ) + "]" );
+        if( length == 0 ) return null;
+
+        var bytes = new byte[length - 1];
+        in.readFully( bytes );
+
+        return new String( bytes, UTF_8 );
+    }
+}
@@ -0,0 +1,52 @@
+package oap.statsdb;
+
+import java.util.Arrays;
+
+/**
+ * Current row of a {@link Query}: keys and values of the path from a root down to the visited node. The cursor is
+ * reused for every row, copy what has to outlive the visit.
+ */
+public final class Cursor {
+    private final String[] keys;
+    private final Node.Value<?>[] values;
+
+    Cursor( int depth ) {
+        this.keys = new String[depth];
+        this.values = new Node.Value<?>[depth];
+    }
+
+    Cursor copy() {
+        var cursor = new Cursor( keys.length );
+        System.arraycopy( keys, 0, cursor.keys, 0, keys.length );
+        System.arraycopy( values, 0, cursor.values, 0, values.length );
+
+        return cursor;
+    }
+
+    void set( int level, String key, Node.Value<?> value ) {
+        keys[level] = key;
+        values[level] = value;
+    }
+
+    public int depth() {
+        return keys.length;
+    }
+
+    public String key( int level ) {
+        return keys[level];
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public <V extends Node.Value<V>> V value( int level ) {
+        return ( V ) values[level];
+    }
+
+    public NodeId nodeId() {
+        return new NodeId( keys.clone() );
+    }
+
+    @Override
+    public String toString() {
+        return "Cursor(" + Arrays.toString( keys ) + ")";
+    }
+}
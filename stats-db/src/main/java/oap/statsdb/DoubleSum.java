@@ -0,0 +1,83 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Lock free sum of doubles, the order of concurrent additions is not defined.
+ */
+public class DoubleSum implements Node.ConcurrentValue<DoubleSum> {
+    @Serial
+    private static final long serialVersionUID = 1965472239958346107L;
+
+    private final DoubleAdder v = new DoubleAdder();
+
+    public DoubleSum() {
+    }
+
+    public DoubleSum( double v ) {
+        this.v.add( v );
+    }
+
+    public void add( double value ) {
+        v.add( value );
+    }
+
+    @JsonProperty( "v" )
+    public double get() {
+        return v.sum();
+    }
+
+    @JsonProperty( "v" )
+    private void set( double value ) {
+        v.reset();
+        v.add( value );
+    }
+
+    @Override
+    public DoubleSum merge( DoubleSum other ) {
+        v.add( other.get() );
+
+        return this;
+    }
+
+    @Override
+    public DoubleSum copy() {
+        return new DoubleSum( get() );
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        return this == o || o instanceof DoubleSum other && Double.compare( get(), other.get() ) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode( get() );
+    }
+
+    @Override
+    public String toString() {
+        return "DoubleSum(" + get() + ")";
+    }
+
+    public static class Serializer implements ValueSerializer<DoubleSum> {
+        @Serial
+        private static final long serialVersionUID = -4470924683446711536L;
+
+        @Override
+        public void write( DataOutput out, DoubleSum value ) throws IOException {
+            out.writeDouble( value.get() );
+        }
+
+        @Override
+        public DoubleSum read( DataInput in ) throws IOException {
+            return new DoubleSum( in.readDouble() );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package oap.statsdb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import lombok.EqualsAndHashCode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Distinct count in {@code 2^p} bytes whatever the cardinality, the standard error is about {@code 1.04 / sqrt(2^p)}.
+ * <p>
+ * The union of two sketches is idempotent, so as a container the node merges its children into its own registers and
+ * counts the distinct items of the whole subtree.
+ */
+@EqualsAndHashCode
+public class HyperLogLog implements Node.Container<HyperLogLog, HyperLogLog> {
+    /**
+     * 4KB, 1.6% error
+     */
+    public static final int DEFAULT_PRECISION = 12;
+    @Serial
+    private static final long serialVersionUID = -2784591017622766049L;
+
+    public int p;
+    public byte[] registers;
+
+    public HyperLogLog() {
+        this( DEFAULT_PRECISION );
+    }
+
+    public HyperLogLog( int p ) {
+        Preconditions.checkArgument( p >= 4 && p <= 18, "precision must be in [4..18]" );
+
+        this.p = p;
+        this.registers = new byte[1 << p];
+    }
+
+    private static long mix( long hash ) {
+        hash = ( hash ^ ( hash >>> 33 ) ) * 0xff51afd7ed558ccdL;
+        hash = ( hash ^ ( hash >>> 33 ) ) * 0xc4ceb9fe1a85ec53L;
+
+        return hash ^ ( hash >>> 33 );
+    }
+
+    public void add( String item ) {
+        addHash( Hashing.murmur3_128().hashString( item, UTF_8 ).asLong() );
+    }
+
+    public void add( long item ) {
+        addHash( mix( item ) );
+    }
+
+    /**
+     * @param hash 64 bits of a good hash of the item
+     */
+    public void addHash( long hash ) {
+        var index = ( int ) ( hash >>> ( 64 - p ) );
+        var rank = ( byte ) Math.min( Long.numberOfLeadingZeros( hash << p ) + 1, 64 - p + 1 );
+
+        if( registers[index] < rank ) registers[index] = rank;
+    }
+
+    public long count() {
+        var m = registers.length;
+        var sum = 0.0;
+        var zeros = 0;
+        for( var register : registers ) {
+            sum += 1.0 / ( 1L << register );
+            if( register == 0 ) zeros++;
+        }
+
+        var alpha = 0.7213 / ( 1 + 1.079 / m );
+        var estimate = alpha * m * m / sum;
+        if( estimate <= 2.5 * m && zeros > 0 ) estimate = m * Math.log( ( double ) m / zeros );
+
+        return Math.round( estimate );
+    }
+
+    @Override
+    public HyperLogLog merge( HyperLogLog other ) {
+        Preconditions.checkArgument( p == other.p, "precision %s vs %s", p, other.p );
+
+        for( var i = 0; i < registers.length; i++ )
+            if( registers[i] < other.registers[i] ) registers[i] = other.registers[i];
+
+        return this;
+    }
+
+    @Override
+    public HyperLogLog copy() {
+        var copy = new HyperLogLog( p );
+        System.arraycopy( registers, 0, copy.registers, 0, registers.length );
+
+        return copy;
+    }
+
+    @Override
+    public HyperLogLog aggregate( List<HyperLogLog> children ) {
+        for( var child : children ) merge( child );
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "HyperLogLog(p=" + p + ", count=" + count() + ")";
+    }
+
+    /**
+     * Registers of small sets are written as index/value pairs, the other ones as they are.
+     */
+    public static class Serializer implements ValueSerializer<HyperLogLog> {
+        @Serial
+        private static final long serialVersionUID = 6338402766624412542L;
+
+        @Override
+        public void write( DataOutput out, HyperLogLog value ) throws IOException {
+            var registers = value.registers;
+            var nonZero = 0;
+            for( var register : registers ) if( register != 0 ) nonZero++;
+
+            out.writeByte( value.p );
+            if( nonZero * 3 < registers.length ) {
+                Varints.writeVarInt( out, nonZero << 1 | 1 );
+                var previous = 0;
+                for( var i = 0; i < registers.length; i++ ) {
+                    if( registers[i] == 0 ) continue;
+
+                    Varints.writeVarInt( out, i - previous );
+                    out.writeByte( registers[i] );
+                    previous = i;
+                }
+            } else {
+                Varints.writeVarInt( out, 0 );
+                out.write( registers );
+            }
+        }
+
+        @Override
+        public HyperLogLog read( DataInput in ) throws IOException {
+            var value = new HyperLogLog( in.readByte() );
+
+            var header = Varints.readVarInt( in );
+            if( ( header & 1 ) == 0 ) in.readFully( value.registers );
+            else {
+                var index = 0;
+                for( var i = header >>> 1; i > 0; i-- ) {
+                    index += Varints.readVarInt( in );
+                    value.registers[index] = in.readByte();
+                }
+            }
+
+            return value;
+        }
+    }
+}
@@ -35,5 +35,14 @@ public abstract class IStatsDB {
 
     protected abstract <V extends Node.Value<V>> void update( String[] keys, Consumer<V> update );
 
+    /**
+     * @return handle for the key path, cache it instead of passing the keys on every update
+     */
+    protected <V extends Node.Value<V>> NodeHandle<V> bind( String... keys ) {
+        var key = keys.clone();
+
+        return consumer -> update( key, consumer );
+    }
+
     public abstract <V extends Node.Value<V>> V get( String... key );
 }
@@ -0,0 +1,37 @@
+package oap.statsdb;
+
+import oap.json.Binder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Length prefixed json, the default for schema levels without a registered {@link ValueSerializer}.
+ */
+class JsonValueSerializer<T extends Node.Value> implements ValueSerializer<T> {
+    private static final long serialVersionUID = 3408713064522781296L;
+
+    private final Class<T> clazz;
+
+    JsonValueSerializer( Class<T> clazz ) {
+        this.clazz = clazz;
+    }
+
+    @Override
+    public void write( DataOutput out, T value ) throws IOException {
+        var bytes = Binder.json.marshal( value ).getBytes( UTF_8 );
+        Varints.writeVarInt( out, bytes.length );
+        out.write( bytes );
+    }
+
+    @Override
+    public T read( DataInput in ) throws IOException {
+        var bytes = new byte[Varints.readVarInt( in )];
+        in.readFully( bytes );
+
+        return Binder.json.unmarshal( clazz, new String( bytes, UTF_8 ) );
+    }
+}
@@ -0,0 +1,87 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free counter, concurrent updates of a hot key go to different {@link LongAdder} cells.
+ */
+public class LongCounter implements Node.ConcurrentValue<LongCounter> {
+    @Serial
+    private static final long serialVersionUID = -6385526013727563329L;
+
+    private final LongAdder v = new LongAdder();
+
+    public LongCounter() {
+    }
+
+    public LongCounter( long v ) {
+        this.v.add( v );
+    }
+
+    public void increment() {
+        v.increment();
+    }
+
+    public void add( long delta ) {
+        v.add( delta );
+    }
+
+    @JsonProperty( "v" )
+    public long get() {
+        return v.sum();
+    }
+
+    @JsonProperty( "v" )
+    private void set( long value ) {
+        v.reset();
+        v.add( value );
+    }
+
+    @Override
+    public LongCounter merge( LongCounter other ) {
+        v.add( other.get() );
+
+        return this;
+    }
+
+    @Override
+    public LongCounter copy() {
+        return new LongCounter( get() );
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        return this == o || o instanceof LongCounter other && get() == other.get();
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode( get() );
+    }
+
+    @Override
+    public String toString() {
+        return "LongCounter(" + get() + ")";
+    }
+
+    public static class Serializer implements ValueSerializer<LongCounter> {
+        @Serial
+        private static final long serialVersionUID = 4412301318722302245L;
+
+        @Override
+        public void write( DataOutput out, LongCounter value ) throws IOException {
+            Varints.writeSignedVarLong( out, value.get() );
+        }
+
+        @Override
+        public LongCounter read( DataInput in ) throws IOException {
+            return new LongCounter( Varints.readSignedVarLong( in ) );
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.SneakyThrows;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Several lock free counters of one node in a single array, e.g. requests/impressions/clicks. Subclasses fix the
+ * number of counters:
+ * <pre>
+ * public class Traffic extends LongCounters {
+ *     public static final int REQUESTS = 0;
+ *     public static final int CLICKS = 1;
+ *
+ *     public Traffic() {
+ *         super( 2 );
+ *     }
+ * }
+ * </pre>
+ */
+public class LongCounters implements Node.ConcurrentValue<LongCounters> {
+    @Serial
+    private static final long serialVersionUID = 2542216512302564389L;
+
+    /**
+     * slot of an array replaced by a longer one, writers and readers move on to the new array. No counter is expected
+     * to reach this value.
+     */
+    private static final long MOVED = Long.MIN_VALUE;
+
+    private volatile AtomicLongArray v;
+
+    public LongCounters() {
+        this( 0 );
+    }
+
+    public LongCounters( int size ) {
+        v = new AtomicLongArray( size );
+    }
+
+    public int size() {
+        return v.length();
+    }
+
+    public void increment( int index ) {
+        add( index, 1 );
+    }
+
+    public void add( int index, long delta ) {
+        while( true ) {
+            var values = v;
+            var value = values.get( index );
+            if( value == MOVED ) await( values );
+            else if( values.compareAndSet( index, value, value + delta ) ) return;
+        }
+    }
+
+    public long get( int index ) {
+        while( true ) {
+            var values = v;
+            var value = values.get( index );
+            if( value != MOVED ) return value;
+            await( values );
+        }
+    }
+
+    private void await( AtomicLongArray moved ) {
+        while( v == moved ) Thread.onSpinWait();
+    }
+
+    @JsonProperty( "v" )
+    public long[] get() {
+        var values = new long[v.length()];
+        for( var i = 0; i < values.length; i++ ) values[i] = get( i );
+
+        return values;
+    }
+
+    /**
+     * a stored array longer than the counters of the class grows them
+     */
+    @JsonProperty( "v" )
+    private void set( long[] values ) {
+        grow( values.length );
+        var current = v;
+        for( var i = 0; i < values.length; i++ ) current.set( i, values[i] );
+    }
+
+    /**
+     * counters missing in the other value are treated as zero, a longer other value grows this one
+     */
+    @Override
+    public LongCounters merge( LongCounters other ) {
+        var values = other.get();
+        grow( values.length );
+        for( var i = 0; i < values.length; i++ ) if( values[i] != 0 ) add( i, values[i] );
+
+        return this;
+    }
+
+    @Override
+    @SneakyThrows
+    public LongCounters copy() {
+        var copy = getClass().getDeclaredConstructor().newInstance();
+        copy.set( get() );
+
+        return copy;
+    }
+
+    /**
+     * Every slot of the old array is moved to the new one and marked {@link #MOVED}, a concurrent {@link #add(int, long)}
+     * either lands before the move or fails and retries on the new array: no count is lost.
+     */
+    private synchronized void grow( int size ) {
+        var current = v;
+        if( current.length() >= size ) return;
+
+        var values = new AtomicLongArray( size );
+        for( var i = 0; i < current.length(); i++ ) values.set( i, current.getAndSet( i, MOVED ) );
+        v = values;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        return this == o || o instanceof LongCounters other && getClass() == other.getClass()
+            && Arrays.equals( get(), other.get() );
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode( get() );
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + Arrays.toString( get() );
+    }
+
+    public static class Serializer<T extends LongCounters> implements ValueSerializer<T> {
+        @Serial
+        private static final long serialVersionUID = -1307016806066606087L;
+
+        private final Class<T> clazz;
+
+        public Serializer( Class<T> clazz ) {
+            this.clazz = clazz;
+        }
+
+        @Override
+        public void write( DataOutput out, T value ) throws IOException {
+            var values = value.get();
+            Varints.writeVarInt( out, values.length );
+            for( var counter : values ) Varints.writeSignedVarLong( out, counter );
+        }
+
+        @Override
+        @SneakyThrows
+        public T read( DataInput in ) throws IOException {
+            var values = new long[Varints.readVarInt( in )];
+            for( var i = 0; i < values.length; i++ ) values[i] = Varints.readSignedVarLong( in );
+
+            var value = clazz.getDeclaredConstructor().newInstance();
+            ( ( LongCounters ) value ).set( values );
+
+            return value;
+        }
+    }
+}
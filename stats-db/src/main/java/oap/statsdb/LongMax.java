@@ -0,0 +1,97 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock free maximum, an update writes only when the value grows. {@code Long.MIN_VALUE} if nothing was recorded.
+ */
+public class LongMax implements Node.ConcurrentValue<LongMax> {
+    @Serial
+    private static final long serialVersionUID = -2215377846231867712L;
+    private static final VarHandle V;
+
+    static {
+        try {
+            V = MethodHandles.lookup().findVarHandle( LongMax.class, "v", long.class );
+        } catch( ReflectiveOperationException e ) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private volatile long v = Long.MIN_VALUE;
+
+    public LongMax() {
+    }
+
+    public LongMax( long v ) {
+        this.v = v;
+    }
+
+    public void update( long value ) {
+        var current = v;
+        while( value > current ) {
+            var witness = ( long ) V.compareAndExchange( this, current, value );
+            if( witness == current ) return;
+            current = witness;
+        }
+    }
+
+    @JsonProperty( "v" )
+    public long get() {
+        return v;
+    }
+
+    @JsonProperty( "v" )
+    private void set( long value ) {
+        v = value;
+    }
+
+    @Override
+    public LongMax merge( LongMax other ) {
+        update( other.v );
+
+        return this;
+    }
+
+    @Override
+    public LongMax copy() {
+        return new LongMax( get() );
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        return this == o || o instanceof LongMax other && v == other.v;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode( v );
+    }
+
+    @Override
+    public String toString() {
+        return "LongMax(" + v + ")";
+    }
+
+    public static class Serializer implements ValueSerializer<LongMax> {
+        @Serial
+        private static final long serialVersionUID = 5740781106426951283L;
+
+        @Override
+        public void write( DataOutput out, LongMax value ) throws IOException {
+            Varints.writeSignedVarLong( out, value.v );
+        }
+
+        @Override
+        public LongMax read( DataInput in ) throws IOException {
+            return new LongMax( Varints.readSignedVarLong( in ) );
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock free minimum, an update writes only when the value drops. {@code Long.MAX_VALUE} if nothing was recorded.
+ */
+public class LongMin implements Node.ConcurrentValue<LongMin> {
+    @Serial
+    private static final long serialVersionUID = 3190857731962401548L;
+    private static final VarHandle V;
+
+    static {
+        try {
+            V = MethodHandles.lookup().findVarHandle( LongMin.class, "v", long.class );
+        } catch( ReflectiveOperationException e ) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private volatile long v = Long.MAX_VALUE;
+
+    public LongMin() {
+    }
+
+    public LongMin( long v ) {
+        this.v = v;
+    }
+
+    public void update( long value ) {
+        var current = v;
+        while( value < current ) {
+            var witness = ( long ) V.compareAndExchange( this, current, value );
+            if( witness == current ) return;
+            current = witness;
+        }
+    }
+
+    @JsonProperty( "v" )
+    public long get() {
+        return v;
+    }
+
+    @JsonProperty( "v" )
+    private void set( long value ) {
+        v = value;
+    }
+
+    @Override
+    public LongMin merge( LongMin other ) {
+        update( other.v );
+
+        return this;
+    }
+
+    @Override
+    public LongMin copy() {
+        return new LongMin( get() );
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        return this == o || o instanceof LongMin other && v == other.v;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode( v );
+    }
+
+    @Override
+    public String toString() {
+        return "LongMin(" + v + ")";
+    }
+
+    public static class Serializer implements ValueSerializer<LongMin> {
+        @Serial
+        private static final long serialVersionUID = -8832045693374460122L;
+
+        @Override
+        public void write( DataOutput out, LongMin value ) throws IOException {
+            Varints.writeSignedVarLong( out, value.v );
+        }
+
+        @Override
+        public LongMin read( DataInput in ) throws IOException {
+            return new LongMin( Varints.readSignedVarLong( in ) );
+        }
+    }
+}
@@ -25,6 +25,7 @@
 package oap.statsdb;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.databind.annotation.JsonTypeIdResolver;
 import com.google.common.base.Preconditions;
@@ -40,8 +41,10 @@ import java.io.Serial;
 import java.io.Serializable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 @EqualsAndHashCode
 @ToString
@@ -50,12 +53,31 @@ public class Node implements Serializable {
     @Serial
     private static final long serialVersionUID = 4194048067764234L;
 
-    public volatile ConcurrentHashMap<String, Node> db = new ConcurrentHashMap<>();
+    /**
+     * number of children kept in an {@link ArrayNodeMap}, a {@link ConcurrentHashMap} is used above it
+     */
+    static final int SMALL = 8;
+    /**
+     * value of a node created after the epoch of a read view
+     */
+    static final Value ABSENT = new Absent();
+
+    /**
+     * {@code null} without children, leaves never allocate a map
+     */
+    @ToString.Exclude
+    private volatile Map<String, Node> db;
     @JsonTypeIdResolver( TypeIdFactory.class )
     @JsonTypeInfo( use = JsonTypeInfo.Id.CUSTOM, property = "o:t" )
-    public Value v;
+    public volatile Value v;
     public long ct;
     public long mt;
+    /**
+     * values replaced while {@link ReadView read views} are open, newest first, {@code null} without views
+     */
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    transient volatile Version history;
 
     public Node( Value v ) {
         this( DateTimeUtils.currentTimeMillis(), v );
@@ -80,11 +102,104 @@ public class Node implements Serializable {
         this.v = node.v;
     }
 
+    /**
+     * children of the node, read only
+     */
+    @JsonProperty( "db" )
+    @EqualsAndHashCode.Include( replaces = "db" )
+    @ToString.Include( name = "db" )
+    public Map<String, Node> children() {
+        var db = this.db;
+
+        return db != null ? db : Map.of();
+    }
+
+    @JsonProperty( "db" )
+    private void children( Map<String, Node> children ) {
+        children.forEach( this::put );
+    }
+
+    public Node child( String key ) {
+        var db = this.db;
+
+        return db != null ? db.get( key ) : null;
+    }
+
+    /**
+     * The child, created by the factory if there is none. Children are added to a small map under the node lock, a
+     * {@link ConcurrentHashMap} takes them without it.
+     */
+    public Node child( String key, Function<String, Node> factory ) {
+        var child = child( key );
+        if( child != null ) return child;
+        if( db instanceof ConcurrentHashMap<String, Node> map ) return map.computeIfAbsent( key, factory );
+
+        synchronized( this ) {
+            if( db instanceof ConcurrentHashMap<String, Node> map ) return map.computeIfAbsent( key, factory );
+
+            child = child( key );
+            if( child == null ) {
+                child = factory.apply( key );
+                add( key, child );
+            }
+
+            return child;
+        }
+    }
+
+    public void put( String key, Node child ) {
+        if( db instanceof ConcurrentHashMap<String, Node> map ) {
+            map.put( key, child );
+            return;
+        }
+
+        synchronized( this ) {
+            if( db instanceof ConcurrentHashMap<String, Node> map ) map.put( key, child );
+            else add( key, child );
+        }
+    }
+
+    /**
+     * under the node lock, the map is not a {@link ConcurrentHashMap}
+     */
+    private void add( String key, Node child ) {
+        var small = ( ArrayNodeMap ) db;
+        if( small == null ) db = new ArrayNodeMap( key, child );
+        else if( small.size() < SMALL || small.containsKey( key ) ) db = small.with( key, child );
+        else {
+            var map = new ConcurrentHashMap<String, Node>( small );
+            map.put( key, child );
+            db = map;
+        }
+    }
+
+    /**
+     * @return the child was removed, it is kept if the key is mapped to another node
+     */
+    public boolean remove( String key, Node child ) {
+        if( db instanceof ConcurrentHashMap<String, Node> map ) return map.remove( key, child );
+
+        synchronized( this ) {
+            if( db instanceof ConcurrentHashMap<String, Node> map ) return map.remove( key, child );
+
+            var small = ( ArrayNodeMap ) db;
+            if( small == null || small.get( key ) != child ) return false;
+
+            db = small.without( key );
+            return true;
+        }
+    }
+
     @SuppressWarnings( "unchecked" )
-    synchronized <V extends Value<V>> void updateValue( Consumer<V> update ) {
+    <V extends Value<V>> void updateValue( Consumer<V> update ) {
         assert v != null;
-        update.accept( ( V ) v );
-        this.mt = DateTimeUtils.currentTimeMillis();
+        if( v instanceof ConcurrentValue ) {
+            update.accept( ( V ) v );
+            this.mt = DateTimeUtils.currentTimeMillis();
+        } else synchronized( this ) {
+            update.accept( ( V ) v );
+            this.mt = DateTimeUtils.currentTimeMillis();
+        }
     }
 
     @SuppressWarnings( "unchecked" )
@@ -96,7 +211,7 @@ public class Node implements Serializable {
 
             if( obj == null ) return null;
 
-            obj = obj.db.get( item );
+            obj = obj.child( item );
         }
 
         if( obj == null ) return null;
@@ -104,8 +219,21 @@ public class Node implements Serializable {
         return ( V ) obj.v;
     }
 
+    /**
+     * The value read first: a writer publishes the old value in the {@link #history} before it replaces it.
+     *
+     * @return the value seen by a read view of the epoch, {@link #ABSENT} if the node did not exist yet
+     */
+    Value valueAt( long epoch ) {
+        var value = v;
+        for( var version = history; version != null && epoch < version.until; version = version.older )
+            value = version.v;
+
+        return value;
+    }
+
     @SuppressWarnings( "unchecked" )
-    public boolean merge( Node node ) {
+    public synchronized boolean merge( Node node ) {
         mt = DateTimeUtils.currentTimeMillis();
         if( v == null ) v = node.v;
         else {
@@ -121,6 +249,45 @@ public class Node implements Serializable {
     }
 
     public interface Value<T extends Value<T>> extends Mergeable<T>, Serializable {
+        /**
+         * A copy sharing no mutable state with this value, taken by the master before a write while
+         * {@link ReadView read views} are open. {@code null} or a copy of another class - the value is copied through
+         * the {@link ValueSerializer} of its level.
+         */
+        default T copy() {
+            return null;
+        }
+    }
+
+    static final class Version {
+        /**
+         * epoch of the write that replaced the value, views of older epochs see it
+         */
+        final long until;
+        final Value v;
+        volatile Version older;
+
+        Version( long until, Value v, Version older ) {
+            this.until = until;
+            this.v = v;
+            this.older = older;
+        }
+    }
+
+    private static final class Absent implements Value<Absent> {
+        @Serial
+        private static final long serialVersionUID = -5216290388311573035L;
+
+        @Override
+        public Absent merge( Absent other ) {
+            return this;
+        }
+    }
+
+    /**
+     * Updated without the node monitor, the value must be safe for concurrent updates.
+     */
+    public interface ConcurrentValue<T extends ConcurrentValue<T>> extends Value<T> {
     }
 
     public interface Container<T extends Value<T>, TChild extends Value<TChild>> extends Value<T> {
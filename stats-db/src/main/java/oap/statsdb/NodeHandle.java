@@ -0,0 +1,12 @@
+package oap.statsdb;
+
+import java.util.function.Consumer;
+
+/**
+ * Key path bound once by {@link IStatsDB#bind(String...)}. Updates skip the key array, {@link NodeId} and lookup of
+ * {@link IStatsDB#update(String[], Consumer)}.
+ */
+@FunctionalInterface
+public interface NodeHandle<V extends Node.Value<V>> {
+    void update( Consumer<V> update );
+}
@@ -1,7 +1,6 @@
 package oap.statsdb;
 
 import com.google.common.base.Preconditions;
-import lombok.EqualsAndHashCode;
 import lombok.ToString;
 
 import javax.annotation.Nonnull;
@@ -18,11 +17,12 @@ import java.util.function.Consumer;
  * Created by igor.petrenko on 2021-02-22.
  */
 @ToString
-@EqualsAndHashCode
 public class NodeId implements Serializable, Iterable<String> {
     @Serial
     private static final long serialVersionUID = 5556915438010788701L;
     private final ArrayList<String> keys = new ArrayList<>();
+    @ToString.Exclude
+    private transient int hash;
 
     public NodeId() {
     }
@@ -65,4 +65,25 @@ public class NodeId implements Serializable, Iterable<String> {
     public String get( int index ) {
         return keys.get( index );
     }
+
+    @Override
+    public boolean equals( Object o ) {
+        if( this == o ) return true;
+        if( !( o instanceof NodeId ) ) return false;
+
+        var nodeId = ( NodeId ) o;
+
+        return hashCode() == nodeId.hashCode() && keys.equals( nodeId.keys );
+    }
+
+    @Override
+    public int hashCode() {
+        var h = hash;
+        if( h == 0 ) {
+            h = keys.hashCode();
+            hash = h;
+        }
+
+        return h;
+    }
 }
@@ -29,6 +29,7 @@ import lombok.ToString;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -62,16 +63,70 @@ public class NodeSchema extends ArrayList<NodeSchema.NodeConfiguration> implemen
         return new NodeConfiguration<>( key, clazz );
     }
 
+    public static <T extends Node.Value> NodeConfiguration<T> nc( String key, Class<T> clazz, ValueSerializer<T> serializer ) {
+        return new NodeConfiguration<>( key, clazz, serializer );
+    }
+
+    /**
+     * time bucketed level, every node holds a {@link RollingWindow} of {@code slots} buckets of {@code granularity}
+     */
+    public static NodeConfiguration<RollingWindow> window( String key, Duration granularity, int slots ) {
+        return new WindowConfiguration( key, granularity.toMillis(), slots );
+    }
+
+    /**
+     * by level, length prefixed json for levels without a registered {@link ValueSerializer}
+     */
+    @SuppressWarnings( "unchecked" )
+    ValueSerializer<Node.Value>[] serializers() {
+        var serializers = new ValueSerializer[size()];
+        for( var i = 0; i < size(); i++ ) {
+            var nc = get( i );
+            serializers[i] = nc.serializer != null ? nc.serializer : new JsonValueSerializer<>( nc.clazz );
+        }
+
+        return serializers;
+    }
+
     @ToString
     public static class NodeConfiguration<T extends Node.Value> implements Serializable {
         private static final long serialVersionUID = -2296344454378267699L;
 
         public final String key;
         public final Class<T> clazz;
+        /**
+         * binary form for {@link BinarySyncCodec} and file snapshots, json if {@code null}
+         */
+        public final ValueSerializer<T> serializer;
+        /**
+         * ms a node of the level is kept in the master after its last modification, 0 - forever
+         */
+        public long ttl;
+        /**
+         * the master keeps an index of the level: key -> paths of the nodes with it, not allowed for roots
+         */
+        public boolean indexed;
 
         public NodeConfiguration( String key, Class<T> clazz ) {
+            this( key, clazz, null );
+        }
+
+        public NodeConfiguration( String key, Class<T> clazz, ValueSerializer<T> serializer ) {
             this.key = key;
             this.clazz = clazz;
+            this.serializer = serializer;
+        }
+
+        public NodeConfiguration<T> ttl( Duration ttl ) {
+            this.ttl = ttl.toMillis();
+
+            return this;
+        }
+
+        public NodeConfiguration<T> indexed() {
+            this.indexed = true;
+
+            return this;
         }
 
         @SneakyThrows
@@ -79,4 +134,24 @@ public class NodeSchema extends ArrayList<NodeSchema.NodeConfiguration> implemen
             return clazz.getDeclaredConstructor().newInstance();
         }
     }
+
+    @ToString( callSuper = true )
+    public static class WindowConfiguration extends NodeConfiguration<RollingWindow> {
+        @Serial
+        private static final long serialVersionUID = 5021385260935541367L;
+
+        public final long granularity;
+        public final int slots;
+
+        public WindowConfiguration( String key, long granularity, int slots ) {
+            super( key, RollingWindow.class, new RollingWindow.Serializer() );
+            this.granularity = granularity;
+            this.slots = slots;
+        }
+
+        @Override
+        public Node.Value newInstance() {
+            return new RollingWindow( granularity, slots );
+        }
+    }
 }
@@ -0,0 +1,208 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.base.Preconditions;
+import lombok.EqualsAndHashCode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mergeable quantiles of non-negative values with a relative error of {@code accuracy} (DDSketch). A value {@code x}
+ * goes to the bucket {@code ceil(log(x) / log(gamma))}, {@code gamma = (1 + accuracy) / (1 - accuracy)}. At most
+ * {@code maxBuckets} buckets are kept, the lowest ones are collapsed first, so high quantiles stay accurate.
+ * Values below {@link #MIN_VALUE}, negative ones included, are counted as zero.
+ * <p>
+ * As a container the node keeps its own samples and merges the whole subtree into {@link #children}.
+ */
+@EqualsAndHashCode
+public class QuantileSketch implements Node.Container<QuantileSketch, QuantileSketch> {
+    public static final double DEFAULT_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+    public static final double MIN_VALUE = 1e-9;
+    @Serial
+    private static final long serialVersionUID = -6917271815812012373L;
+
+    public double accuracy;
+    public int maxBuckets;
+    public long zero;
+    /**
+     * index of {@code counts[0]}
+     */
+    public int offset;
+    public long[] counts = new long[0];
+    /**
+     * samples of all the descendants, {@code null} until aggregated
+     */
+    @JsonIgnore
+    public transient QuantileSketch children;
+    private transient double logGamma;
+
+    public QuantileSketch() {
+        this( DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS );
+    }
+
+    public QuantileSketch( double accuracy, int maxBuckets ) {
+        Preconditions.checkArgument( accuracy > 0 && accuracy < 1, "accuracy must be in (0..1)" );
+        Preconditions.checkArgument( maxBuckets > 0, "maxBuckets must be positive" );
+
+        this.accuracy = accuracy;
+        this.maxBuckets = maxBuckets;
+    }
+
+    private double logGamma() {
+        if( logGamma == 0 ) logGamma = Math.log( ( 1 + accuracy ) / ( 1 - accuracy ) );
+
+        return logGamma;
+    }
+
+    public void add( double value ) {
+        add( value, 1 );
+    }
+
+    public void add( double value, long count ) {
+        if( value < MIN_VALUE ) zero += count;
+        else add( ( int ) Math.ceil( Math.log( value ) / logGamma() ), count );
+    }
+
+    private void add( int index, long count ) {
+        ensure( index, index + 1 );
+        counts[index - offset] += count;
+
+        collapse();
+    }
+
+    /**
+     * grows the buckets to cover [from..to)
+     */
+    private void ensure( int from, int to ) {
+        if( counts.length == 0 ) {
+            offset = from;
+            counts = new long[to - from];
+            return;
+        }
+
+        if( from < offset ) {
+            var grown = new long[counts.length + offset - from];
+            System.arraycopy( counts, 0, grown, offset - from, counts.length );
+            counts = grown;
+            offset = from;
+        }
+        if( to > offset + counts.length ) counts = Arrays.copyOf( counts, to - offset );
+    }
+
+    private void collapse() {
+        if( counts.length <= maxBuckets ) return;
+
+        var extra = counts.length - maxBuckets;
+        var collapsed = 0L;
+        for( var i = 0; i <= extra; i++ ) collapsed += counts[i];
+
+        counts = Arrays.copyOfRange( counts, extra, counts.length );
+        counts[0] = collapsed;
+        offset += extra;
+    }
+
+    public long count() {
+        var count = zero;
+        for( var c : counts ) count += c;
+
+        return count;
+    }
+
+    /**
+     * @param q in [0..1]
+     * @return {@code NaN} if empty
+     */
+    public double quantile( double q ) {
+        Preconditions.checkArgument( q >= 0 && q <= 1, "quantile must be in [0..1]" );
+
+        var count = count();
+        if( count == 0 ) return Double.NaN;
+
+        var rank = ( long ) ( q * ( count - 1 ) );
+        var seen = zero;
+        if( seen > rank ) return 0;
+
+        var gamma = Math.exp( logGamma() );
+        for( var i = 0; i < counts.length; i++ ) {
+            seen += counts[i];
+            if( seen > rank ) return 2 * Math.pow( gamma, offset + i ) / ( gamma + 1 );
+        }
+
+        throw new IllegalStateException( "rank " + rank + " of " + count );
+    }
+
+    @Override
+    public QuantileSketch merge( QuantileSketch other ) {
+        Preconditions.checkArgument( accuracy == other.accuracy, "accuracy %s vs %s", accuracy, other.accuracy );
+
+        zero += other.zero;
+        if( other.counts.length > 0 ) {
+            ensure( other.offset, other.offset + other.counts.length );
+            for( var i = 0; i < other.counts.length; i++ ) counts[other.offset - offset + i] += other.counts[i];
+
+            collapse();
+        }
+
+        return this;
+    }
+
+    @Override
+    public QuantileSketch copy() {
+        var copy = new QuantileSketch( accuracy, maxBuckets );
+        copy.zero = zero;
+        copy.offset = offset;
+        copy.counts = counts.clone();
+        copy.children = children != null ? children.copy() : null;
+
+        return copy;
+    }
+
+    @Override
+    public QuantileSketch aggregate( List<QuantileSketch> children ) {
+        var merged = new QuantileSketch( accuracy, maxBuckets );
+        for( var child : children ) {
+            merged.merge( child );
+            if( child.children != null ) merged.merge( child.children );
+        }
+        this.children = merged;
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch(count=" + count() + ", p50=" + quantile( 0.5 ) + ", p99=" + quantile( 0.99 ) + ")";
+    }
+
+    public static class Serializer implements ValueSerializer<QuantileSketch> {
+        @Serial
+        private static final long serialVersionUID = 2035383813180155858L;
+
+        @Override
+        public void write( DataOutput out, QuantileSketch value ) throws IOException {
+            out.writeDouble( value.accuracy );
+            Varints.writeVarInt( out, value.maxBuckets );
+            Varints.writeVarLong( out, value.zero );
+            Varints.writeSignedVarLong( out, value.offset );
+            Varints.writeVarInt( out, value.counts.length );
+            for( var count : value.counts ) Varints.writeVarLong( out, count );
+        }
+
+        @Override
+        public QuantileSketch read( DataInput in ) throws IOException {
+            var value = new QuantileSketch( in.readDouble(), Varints.readVarInt( in ) );
+            value.zero = Varints.readVarLong( in );
+            value.offset = ( int ) Varints.readSignedVarLong( in );
+            value.counts = new long[Varints.readVarInt( in )];
+            for( var i = 0; i < value.counts.length; i++ ) value.counts[i] = Varints.readVarLong( in );
+
+            return value;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package oap.statsdb;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Rows of the nodes at one depth of the tree, every row is the path from a root down to the node. Keys fixed by
+ * {@link #prefix(String...)} are looked up instead of scanned, subtrees rejected by a {@link #where(int, BiPredicate)}
+ * filter are skipped. Rows are passed as one reused {@link Cursor}, nothing is allocated per row unless the visitor or
+ * the stream mapper does it.
+ * <pre>
+ * db.query( 3 ).prefix( "campaign1" ).where( 1, ( key, value ) -&gt; key.startsWith( "US" ) )
+ *     .forEach( cursor -&gt; ... );
+ * </pre>
+ *
+ * @see StatsDB#query(int)
+ * @see ReadView#query(int)
+ */
+public final class Query {
+    private final Map<String, Node> db;
+    private final int depth;
+    /**
+     * values of this {@link ReadView} epoch, {@link Long#MAX_VALUE} - the live tree
+     */
+    private final long epoch;
+    private final BiPredicate<String, Node.Value<?>>[] filters;
+    private String[] prefix = new String[0];
+
+    Query( Map<String, Node> db, int depth ) {
+        this( db, depth, Long.MAX_VALUE );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    Query( Map<String, Node> db, int depth, long epoch ) {
+        Preconditions.checkArgument( depth > 0, "depth must be positive" );
+
+        this.db = db;
+        this.depth = depth;
+        this.epoch = epoch;
+        this.filters = new BiPredicate[depth];
+    }
+
+    /**
+     * @param keys keys of the first levels
+     */
+    public Query prefix( String... keys ) {
+        Preconditions.checkArgument( keys.length <= depth, "prefix %s is deeper than %s", keys.length, depth );
+
+        this.prefix = keys.clone();
+
+        return this;
+    }
+
+    /**
+     * Nodes of the level are visited only if the filter accepts their key and value, filters of the same level are
+     * combined with 'and'.
+     */
+    @SuppressWarnings( "unchecked" )
+    public <V extends Node.Value<V>> Query where( int level, BiPredicate<String, V> filter ) {
+        Preconditions.checkElementIndex( level, depth, "level" );
+
+        var f = ( BiPredicate<String, Node.Value<?>> ) ( BiPredicate<String, ?> ) filter;
+        filters[level] = filters[level] == null ? f : filters[level].and( f );
+
+        return this;
+    }
+
+    /**
+     * @return {@code false} if the visitor stopped the walk
+     */
+    public boolean forEach( Visitor visitor ) {
+        return walk( db, 0, new Cursor( depth ), visitor );
+    }
+
+    /**
+     * Rows mapped from the cursor. The stream splits the keys of the first level not fixed by the prefix,
+     * {@link Stream#parallel()} scans their subtrees in parallel.
+     */
+    public <R> Stream<R> stream( Function<Cursor, R> mapper ) {
+        var cursor = new Cursor( depth );
+        var level = Math.min( prefix.length, depth - 1 );
+
+        Map<String, Node> children = db;
+        for( var i = 0; i < level && children != null; i++ ) {
+            var node = children.get( prefix[i] );
+            var value = node != null ? node.valueAt( epoch ) : Node.ABSENT;
+            if( value == Node.ABSENT || !accept( i, prefix[i], value ) ) children = null;
+            else {
+                cursor.set( i, prefix[i], value );
+                children = node.children();
+            }
+        }
+
+        var entries = new ArrayList<Map.Entry<String, Node>>();
+        if( children != null ) {
+            if( level < prefix.length ) {
+                var node = children.get( prefix[level] );
+                if( node != null ) entries.add( Map.entry( prefix[level], node ) );
+            } else entries.addAll( children.entrySet() );
+        }
+
+        return StreamSupport.stream( new Rows<>( entries, 0, entries.size(), level, cursor, mapper ), false );
+    }
+
+    private boolean walk( Map<String, Node> children, int level, Cursor cursor, Visitor visitor ) {
+        if( level < prefix.length ) {
+            var key = prefix[level];
+            var node = children.get( key );
+
+            return node == null || visit( key, node, level, cursor, visitor );
+        }
+
+        for( var child : children.entrySet() )
+            if( !visit( child.getKey(), child.getValue(), level, cursor, visitor ) ) return false;
+
+        return true;
+    }
+
+    private boolean visit( String key, Node node, int level, Cursor cursor, Visitor visitor ) {
+        var value = node.valueAt( epoch );
+        if( value == Node.ABSENT || !accept( level, key, value ) ) return true;
+
+        cursor.set( level, key, value );
+        if( level == depth - 1 ) return visitor.visit( cursor );
+
+        return walk( node.children(), level + 1, cursor, visitor );
+    }
+
+    private boolean accept( int level, String key, Node.Value<?> value ) {
+        var filter = filters[level];
+
+        return filter == null || filter.test( key, value );
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @return {@code false} to stop the walk
+         */
+        boolean visit( Cursor cursor );
+    }
+
+    /**
+     * Subtrees of a range of entries of one level, walked lazily with an iterator per level below it: a short-circuiting
+     * stream like {@link Stream#limit(long)} or {@link Stream#findFirst()} stops after the rows it takes.
+     */
+    private final class Rows<R> implements Spliterator<R> {
+        private final List<Map.Entry<String, Node>> entries;
+        private final int level;
+        private final Cursor cursor;
+        private final Function<Cursor, R> mapper;
+        @SuppressWarnings( "unchecked" )
+        private final Iterator<Map.Entry<String, Node>>[] iterators = new Iterator[depth];
+        private final int to;
+        private int from;
+        /**
+         * level of the next entry, {@link #level} - the next one of the range
+         */
+        private int top;
+
+        private Rows( List<Map.Entry<String, Node>> entries, int from, int to, int level, Cursor cursor,
+                      Function<Cursor, R> mapper ) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.level = level;
+            this.cursor = cursor;
+            this.mapper = mapper;
+            this.top = level;
+        }
+
+        /**
+         * @return {@code false} if there are no rows left, otherwise the cursor is set to the next one
+         */
+        private boolean advance() {
+            while( true ) {
+                var l = top;
+                Map.Entry<String, Node> entry;
+                if( l == level ) {
+                    if( from >= to ) return false;
+                    entry = entries.get( from++ );
+                } else if( iterators[l].hasNext() ) entry = iterators[l].next();
+                else {
+                    iterators[top--] = null;
+                    continue;
+                }
+
+                var node = entry.getValue();
+                var value = node.valueAt( epoch );
+                if( value == Node.ABSENT || !accept( l, entry.getKey(), value ) ) continue;
+
+                cursor.set( l, entry.getKey(), value );
+                if( l == depth - 1 ) return true;
+
+                top = l + 1;
+                iterators[top] = node.children().entrySet().iterator();
+            }
+        }
+
+        @Override
+        public boolean tryAdvance( Consumer<? super R> action ) {
+            if( !advance() ) return false;
+
+            action.accept( mapper.apply( cursor ) );
+
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining( Consumer<? super R> action ) {
+            while( top > level && advance() ) action.accept( mapper.apply( cursor ) );
+
+            for( ; from < to; from++ ) {
+                var entry = entries.get( from );
+                visit( entry.getKey(), entry.getValue(), level, cursor, c -> {
+                    action.accept( mapper.apply( c ) );
+                    return true;
+                } );
+            }
+        }
+
+        @Override
+        public Spliterator<R> trySplit() {
+            if( to - from < 2 ) return null;
+
+            var middle = ( from + to ) >>> 1;
+            var split = new Rows<>( entries, from, middle, level, cursor.copy(), mapper );
+            from = middle;
+
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return 0;
+        }
+    }
+}
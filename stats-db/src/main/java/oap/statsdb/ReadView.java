@@ -0,0 +1,71 @@
+package oap.statsdb;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * The tree as it was when the view was opened, merges go on without waiting for it. Nothing is copied on open: a
+ * value changed while the view is open is replaced with a copy and the view keeps reading the old one, nodes created
+ * after the open are skipped. Close the view as soon as the report is done, the old values are kept until then.
+ * <pre>
+ * try( var view = master.view() ) {
+ *     view.query( 3 ).forEach( cursor -&gt; ... );
+ * }
+ * </pre>
+ */
+public final class ReadView implements Closeable {
+    private final Map<String, Node> db;
+    private final long epoch;
+    private final Runnable onClose;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    ReadView( Map<String, Node> db, long epoch, Runnable onClose ) {
+        this.db = db;
+        this.epoch = epoch;
+        this.onClose = onClose;
+    }
+
+    private Node node( String... key ) {
+        if( key.length == 0 ) return null;
+
+        var node = db.get( key[0] );
+        for( var i = 1; i < key.length && node != null; i++ ) node = node.child( key[i] );
+
+        return node;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public <V extends Node.Value<V>> V get( String... key ) {
+        var node = node( key );
+        if( node == null ) return null;
+
+        var value = node.valueAt( epoch );
+
+        return value != Node.ABSENT ? ( V ) value : null;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public <V extends Node.Value<V>> Stream<V> children( String... key ) {
+        var node = node( key );
+        if( node == null ) return Stream.empty();
+
+        return node.children().values().stream()
+            .map( n -> n.valueAt( epoch ) )
+            .filter( v -> v != Node.ABSENT )
+            .map( v -> ( V ) v );
+    }
+
+    /**
+     * @see StatsDB#query(int)
+     */
+    public Query query( int depth ) {
+        return new Query( db, depth, epoch );
+    }
+
+    @Override
+    public void close() {
+        if( closed.compareAndSet( false, true ) ) onClose.run();
+    }
+}
@@ -0,0 +1,176 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.base.Preconditions;
+import lombok.EqualsAndHashCode;
+import org.joda.time.DateTimeUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sums of the last {@code slots.length} time buckets of {@code granularity} ms, a ring indexed by
+ * {@code time / granularity}. Buckets falling out of the ring are reused, so the memory does not grow with time and
+ * windowed stats need no timestamp in the key.
+ * <p>
+ * Buckets are absolute, nodes sync the buckets they touched and the master adds them bucket by bucket. As a container
+ * the node keeps its own buckets and sums the whole subtree into {@link #children}.
+ *
+ * @see NodeSchema#window(String, Duration, int)
+ */
+@EqualsAndHashCode
+public class RollingWindow implements Node.Container<RollingWindow, RollingWindow> {
+    @Serial
+    private static final long serialVersionUID = 3516203446120557811L;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    public long granularity;
+    public long[] slots;
+    /**
+     * the latest bucket, {@link #EMPTY} if nothing was added yet
+     */
+    public long head = EMPTY;
+    /**
+     * sums of all the descendants, {@code null} until aggregated
+     */
+    @JsonIgnore
+    public transient RollingWindow children;
+
+    /**
+     * one hour by minute
+     */
+    public RollingWindow() {
+        this( Duration.ofMinutes( 1 ).toMillis(), 60 );
+    }
+
+    public RollingWindow( long granularity, int slots ) {
+        Preconditions.checkArgument( granularity > 0, "granularity must be positive" );
+        Preconditions.checkArgument( slots > 0, "slots must be positive" );
+
+        this.granularity = granularity;
+        this.slots = new long[slots];
+    }
+
+    public void add( long value ) {
+        add( DateTimeUtils.currentTimeMillis(), value );
+    }
+
+    public void add( long time, long value ) {
+        addBucket( Math.floorDiv( time, granularity ), value );
+    }
+
+    private void addBucket( long bucket, long value ) {
+        if( head == EMPTY || bucket > head ) advance( bucket );
+        else if( bucket <= head - slots.length ) return;
+
+        slots[index( bucket )] += value;
+    }
+
+    private void advance( long bucket ) {
+        if( head == EMPTY || bucket - head >= slots.length ) Arrays.fill( slots, 0 );
+        else for( var b = head + 1; b <= bucket; b++ ) slots[index( b )] = 0;
+
+        head = bucket;
+    }
+
+    private int index( long bucket ) {
+        return ( int ) Math.floorMod( bucket, ( long ) slots.length );
+    }
+
+    public long sum( Duration last ) {
+        return sum( DateTimeUtils.currentTimeMillis(), last );
+    }
+
+    /**
+     * @param last rounded up to whole buckets, the bucket of {@code now} included
+     */
+    public long sum( long now, Duration last ) {
+        if( head == EMPTY ) return 0;
+
+        var to = Math.floorDiv( now, granularity );
+        var from = Math.max( to - Math.max( ( last.toMillis() + granularity - 1 ) / granularity, 1 ) + 1,
+            head - slots.length + 1 );
+
+        var sum = 0L;
+        for( var b = from; b <= Math.min( to, head ); b++ ) sum += slots[index( b )];
+
+        return sum;
+    }
+
+    @Override
+    public RollingWindow merge( RollingWindow other ) {
+        Preconditions.checkArgument( granularity == other.granularity, "granularity %s vs %s", granularity, other.granularity );
+
+        if( other.head == EMPTY ) return this;
+
+        for( var b = other.head - other.slots.length + 1; b <= other.head; b++ ) {
+            var value = other.slots[other.index( b )];
+            if( value != 0 ) addBucket( b, value );
+        }
+
+        return this;
+    }
+
+    @Override
+    public RollingWindow copy() {
+        var copy = new RollingWindow( granularity, slots.length );
+        System.arraycopy( slots, 0, copy.slots, 0, slots.length );
+        copy.head = head;
+        copy.children = children != null ? children.copy() : null;
+
+        return copy;
+    }
+
+    @Override
+    public RollingWindow aggregate( List<RollingWindow> children ) {
+        var sum = new RollingWindow( granularity, slots.length );
+        for( var child : children ) {
+            sum.merge( child );
+            if( child.children != null ) sum.merge( child.children );
+        }
+        this.children = sum;
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "RollingWindow(granularity=" + granularity + ", head=" + head + ", slots=" + slots.length + ")";
+    }
+
+    /**
+     * Only the buckets of the ring, oldest first.
+     */
+    public static class Serializer implements ValueSerializer<RollingWindow> {
+        @Serial
+        private static final long serialVersionUID = -1964407393524006839L;
+
+        @Override
+        public void write( DataOutput out, RollingWindow value ) throws IOException {
+            Varints.writeVarLong( out, value.granularity );
+            Varints.writeVarInt( out, value.slots.length );
+            Varints.writeSignedVarLong( out, value.head );
+            if( value.head == EMPTY ) return;
+
+            for( var b = value.head - value.slots.length + 1; b <= value.head; b++ )
+                Varints.writeSignedVarLong( out, value.slots[value.index( b )] );
+        }
+
+        @Override
+        public RollingWindow read( DataInput in ) throws IOException {
+            var value = new RollingWindow( Varints.readVarLong( in ), Varints.readVarInt( in ) );
+            value.head = Varints.readSignedVarLong( in );
+            if( value.head == EMPTY ) return value;
+
+            for( var b = value.head - value.slots.length + 1; b <= value.head; b++ )
+                value.slots[value.index( b )] = Varints.readSignedVarLong( in );
+
+            return value;
+        }
+    }
+}
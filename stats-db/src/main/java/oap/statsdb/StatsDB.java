@@ -29,13 +29,15 @@ import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.Serializable;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 
-import static java.util.stream.Collectors.toList;
-
 @Slf4j
 @SuppressWarnings( "checkstyle:AbstractClassName" )
 public abstract class StatsDB extends IStatsDB {
@@ -46,19 +48,28 @@ public abstract class StatsDB extends IStatsDB {
         this.schema = schema;
     }
 
-    @SuppressWarnings( "unchecked" )
     protected static void updateAggregates( Node mnode ) {
-        for( var node : mnode.db.values() ) {
+        for( var node : mnode.children().values() ) {
             updateAggregates( node );
         }
 
+        aggregate( mnode );
+    }
+
+    /**
+     * aggregates the direct children of the node, children aggregates must be up to date
+     */
+    @SuppressWarnings( "unchecked" )
+    protected static void aggregate( Node mnode ) {
         var value = mnode.v;
         if( value instanceof Node.Container ) {
-            ( ( Node.Container ) value ).aggregate( mnode.db.values().stream()
-                .map( n -> n.v )
-                .filter( Objects::nonNull )
-                .collect( toList() )
-            );
+            var db = mnode.children();
+            var children = new ArrayList<Node.Value>( db.size() );
+            for( var node : db.values() ) {
+                if( node.v != null ) children.add( node.v );
+            }
+
+            ( ( Node.Container ) value ).aggregate( children );
         }
     }
 
@@ -116,7 +127,7 @@ public abstract class StatsDB extends IStatsDB {
         if( node == null ) return null;
         if( position >= key.length ) return node;
 
-        return _getNode( key, position + 1, node.db.get( key[position] ) );
+        return _getNode( key, position + 1, node.child( key[position] ) );
     }
 
     protected Node getNode( String... key ) {
@@ -134,9 +145,43 @@ public abstract class StatsDB extends IStatsDB {
     @SuppressWarnings( { "unchecked", "checkstyle:MethodName" } )
     private <V extends Node.Value<V>> Stream<V> _children( String[] key, int position, Node node ) {
         if( node == null ) return Stream.empty();
-        if( position >= key.length ) return node.db.values().stream().map( n -> ( V ) n.v );
+        if( position >= key.length ) return node.children().values().stream().map( n -> ( V ) n.v );
 
-        return _children( key, position + 1, node.db.get( key[position] ) );
+        return _children( key, position + 1, node.child( key[position] ) );
+    }
+
+    /**
+     * @param k        number of children to return
+     * @param parallel children of a large node are ranked by several threads
+     * @param key      path of the parent, roots if empty
+     * @return the k greatest children by the comparator, greatest first
+     */
+    @SuppressWarnings( "unchecked" )
+    public <V extends Node.Value<V>> List<Map.Entry<String, V>> top( int k, Comparator<? super V> comparator,
+                                                                    boolean parallel, String... key ) {
+        Map<String, Node> children = db;
+        if( key.length > 0 ) {
+            var node = getNode( key );
+            if( node == null ) return List.of();
+            children = node.children();
+        }
+
+        var entries = parallel ? children.entrySet().parallelStream() : children.entrySet().stream();
+
+        return entries
+            .filter( e -> e.getValue().v != null )
+            .collect( TopK.collector( k, Comparator.comparing( e -> ( V ) e.getValue().v, comparator ) ) )
+            .stream()
+            .map( e -> Map.entry( e.getKey(), ( V ) e.getValue().v ) )
+            .toList();
+    }
+
+    /**
+     * @see #top(int, Comparator, boolean, String...)
+     */
+    public <V extends Node.Value<V>> List<Map.Entry<String, V>> topBy( int k, ToLongFunction<? super V> score,
+                                                                      boolean parallel, String... key ) {
+        return top( k, Comparator.comparingLong( score ), parallel, key );
     }
 
     public <N extends Node, V extends Node.Value<V>> N updateNode( String[] key,
@@ -148,7 +193,7 @@ public abstract class StatsDB extends IStatsDB {
         for( int i = 1; i < key.length; i++ ) {
             var keyItem = key[i];
             var finalI = i;
-            tNode = tNode.db.computeIfAbsent( keyItem, k -> new Node( schema.get( finalI ).newInstance() ) );
+            tNode = tNode.child( keyItem, k -> new Node( schema.get( finalI ).newInstance() ) );
         }
 
         tNode.updateValue( update );
@@ -160,51 +205,30 @@ public abstract class StatsDB extends IStatsDB {
         db.clear();
     }
 
-    @SuppressWarnings( "unchecked" )
+    /**
+     * @param depth rows are the nodes of this level, 1 - roots
+     */
+    public Query query( int depth ) {
+        return new Query( db, depth );
+    }
+
     public <T1 extends Node.Value<T1>, T2 extends Node.Value<T2>> Stream<Select2<T1, T2>> select2() {
-        return
-            db.entrySet().stream()
-                .flatMap( e1 -> e1.getValue().db.entrySet().stream().map(
-                    e2 -> new Select2<>( e1.getKey(), ( T1 ) e1.getValue().v, e2.getKey(), ( T2 ) e2.getValue().v ) ) );
+        return query( 2 ).stream( c -> new Select2<>( c.key( 0 ), c.<T1>value( 0 ), c.key( 1 ), c.<T2>value( 1 ) ) );
     }
 
-    @SuppressWarnings( "unchecked" )
     public <T1 extends Node.Value<T1>, T2 extends Node.Value<T2>, T3 extends Node.Value<T3>> Stream<Select3<T1, T2, T3>> select3() {
-        return
-            db.entrySet().stream()
-                .flatMap( e1 -> e1.getValue().db.entrySet().stream().flatMap(
-                    e2 -> e2.getValue().db.entrySet().stream().map(
-                        e3 -> new Select3<>( e1.getKey(), ( T1 ) e1.getValue().v,
-                            e2.getKey(), ( T2 ) e2.getValue().v,
-                            e3.getKey(), ( T3 ) e3.getValue().v ) ) ) );
+        return query( 3 ).stream( c -> new Select3<>( c.key( 0 ), c.<T1>value( 0 ), c.key( 1 ), c.<T2>value( 1 ),
+            c.key( 2 ), c.<T3>value( 2 ) ) );
     }
 
-    @SuppressWarnings( "unchecked" )
     public <T1 extends Node.Value<T1>, T2 extends Node.Value<T2>, T3 extends Node.Value<T3>, T4 extends Node.Value<T4>> Stream<Select4<T1, T2, T3, T4>> select4() {
-        return
-            db.entrySet().stream()
-                .flatMap( e1 -> e1.getValue().db.entrySet().stream().flatMap(
-                    e2 -> e2.getValue().db.entrySet().stream().flatMap(
-                        e3 -> e3.getValue().db.entrySet().stream().map(
-                            e4 -> new Select4<>( e1.getKey(), ( T1 ) e1.getValue().v,
-                                e2.getKey(), ( T2 ) e2.getValue().v,
-                                e3.getKey(), ( T3 ) e3.getValue().v,
-                                e4.getKey(), ( T4 ) e4.getValue().v ) ) ) ) );
+        return query( 4 ).stream( c -> new Select4<>( c.key( 0 ), c.<T1>value( 0 ), c.key( 1 ), c.<T2>value( 1 ),
+            c.key( 2 ), c.<T3>value( 2 ), c.key( 3 ), c.<T4>value( 3 ) ) );
     }
 
-    @SuppressWarnings( "unchecked" )
     public <T1 extends Node.Value<T1>, T2 extends Node.Value<T2>, T3 extends Node.Value<T3>, T4 extends Node.Value<T4>, T5 extends Node.Value<T5>> Stream<Select5<T1, T2, T3, T4, T5>> select5() {
-        return
-            db.entrySet().stream()
-                .flatMap( e1 -> e1.getValue().db.entrySet().stream().flatMap(
-                    e2 -> e2.getValue().db.entrySet().stream().flatMap(
-                        e3 -> e3.getValue().db.entrySet().stream().flatMap(
-                            e4 -> e4.getValue().db.entrySet().stream().map(
-                                e5 -> new Select5<>( e1.getKey(), ( T1 ) e1.getValue().v,
-                                    e2.getKey(), ( T2 ) e2.getValue().v,
-                                    e3.getKey(), ( T3 ) e3.getValue().v,
-                                    e4.getKey(), ( T4 ) e4.getValue().v,
-                                    e5.getKey(), ( T5 ) e5.getValue().v ) ) ) ) ) );
+        return query( 5 ).stream( c -> new Select5<>( c.key( 0 ), c.<T1>value( 0 ), c.key( 1 ), c.<T2>value( 1 ),
+            c.key( 2 ), c.<T3>value( 2 ), c.key( 3 ), c.<T4>value( 3 ), c.key( 4 ), c.<T5>value( 4 ) ) );
     }
 
     @ToString
@@ -24,58 +24,172 @@
 
 package oap.statsdb;
 
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import oap.statsdb.RemoteStatsDB.Sync;
 import oap.util.Cuid;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 
 @Slf4j
 public class StatsDBNode extends IStatsDB implements Runnable, Closeable {
-    public final ConcurrentHashMap<NodeId, Node> nodes = new ConcurrentHashMap<>();
+    private static final AtomicInteger instances = new AtomicInteger();
+    /**
+     * writer threads numbered round-robin on their first update, consecutive threads get different stripes whatever
+     * their ids are
+     */
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final ThreadLocal<Integer> thread = ThreadLocal.withInitial( threads::getAndIncrement );
+
     protected final NodeSchema schema;
     private final StatsDBTransport transport;
     private final Cuid timestamp;
+    private final int stripes;
+    /**
+     * pending nodes, sync replaces the whole buffer with an empty one
+     */
+    private volatile Buffer buffer;
+    /**
+     * nodes of failed syncs, merged into the next one
+     */
+    private final HashMap<NodeId, Node> retry = new HashMap<>();
+    /**
+     * nodes with new ids are dropped once the retry buffer holds this many
+     */
+    public int retryCapacity = 100_000;
     protected boolean lastSyncSuccess = false;
+    private final Timer syncTime = Timer.builder( "statsdb.node.sync" )
+        .publishPercentileHistogram()
+        .register( Metrics.globalRegistry );
+    private final DistributionSummary syncNodes = DistributionSummary.builder( "statsdb.node.sync.nodes" )
+        .baseUnit( "nodes" )
+        .register( Metrics.globalRegistry );
+    /**
+     * tagged per instance, the registry keeps only the first gauge of a name and tags
+     */
+    private final Gauge pendingGauge;
 
     public StatsDBNode( NodeSchema schema, StatsDBTransport transport ) {
         this( schema, transport, Cuid.UNIQUE );
     }
 
     public StatsDBNode( NodeSchema schema, StatsDBTransport transport, Cuid timestamp ) {
+        this( schema, transport, timestamp, 1 );
+    }
+
+    public StatsDBNode( NodeSchema schema, StatsDBTransport transport, Cuid timestamp, int stripes ) {
+        Preconditions.checkArgument( stripes > 0, "stripes must be positive" );
+
         this.schema = schema;
         this.transport = transport;
         this.timestamp = timestamp;
+        this.stripes = stripes;
+        this.buffer = new Buffer( stripes );
+
+        this.pendingGauge = Gauge.builder( "statsdb.node.pending", this, StatsDBNode::pending )
+            .tag( "node", String.valueOf( instances.incrementAndGet() ) )
+            .register( Metrics.globalRegistry );
     }
 
     public synchronized void sync() {
+        var started = System.nanoTime();
+        ArrayList<Sync.NodeIdNode> snapshot = null;
         try {
-            var snapshot = snapshot();
+            snapshot = snapshot();
             if( !snapshot.isEmpty() ) {
                 var sync = new Sync( snapshot, timestamp.next() );
                 transport.sendAsync( sync );
+                syncNodes.record( snapshot.size() );
             }
 
             lastSyncSuccess = true;
         } catch( Exception e ) {
             lastSyncSuccess = false;
+            if( snapshot != null ) retry( snapshot );
             log.error( e.getMessage(), e );
+        } finally {
+            syncTime.record( System.nanoTime() - started, TimeUnit.NANOSECONDS );
         }
     }
 
+    /**
+     * nodes waiting for the next sync, the ones of failed syncs included
+     */
+    public synchronized int pending() {
+        var count = retry.size();
+        for( var stripe : buffer.stripes ) count += stripe.size();
+
+        return count;
+    }
+
+    private void retry( ArrayList<Sync.NodeIdNode> snapshot ) {
+        var dropped = 0;
+        for( var nodeIdNode : snapshot ) {
+            var node = retry.get( nodeIdNode.nodeId );
+            if( node != null ) merge( node, nodeIdNode.node );
+            else if( retry.size() < retryCapacity ) retry.put( nodeIdNode.nodeId, nodeIdNode.node );
+            else dropped++;
+        }
+
+        if( dropped > 0 ) log.error( "retry buffer is full ({} nodes), {} nodes dropped", retryCapacity, dropped );
+    }
+
     private ArrayList<Sync.NodeIdNode> snapshot() {
-        var ret = new ArrayList<Sync.NodeIdNode>();
-        for( var entry : new ArrayList<>( nodes.entrySet() ) ) {
-            ret.add( new Sync.NodeIdNode( entry.getKey(), entry.getValue() ) );
-            nodes.remove( entry.getKey() );
+        var retired = buffer;
+        buffer = new Buffer( stripes );
+        retired.awaitWriters();
+
+        var nodes = retired.stripes[0];
+        for( var i = 1; i < stripes; i++ ) {
+            retired.stripes[i].forEach( ( nodeId, node ) -> nodes.merge( nodeId, node, StatsDBNode::merge ) );
         }
+        retry.forEach( ( nodeId, node ) -> nodes.merge( nodeId, node, StatsDBNode::merge ) );
+        retry.clear();
+
+        var ret = new ArrayList<Sync.NodeIdNode>( nodes.size() );
+        nodes.forEach( ( nodeId, node ) -> ret.add( new Sync.NodeIdNode( nodeId, node ) ) );
 
         return ret;
     }
 
+    private static Node merge( Node node, Node other ) {
+        node.merge( other );
+        node.ct = Math.min( node.ct, other.ct );
+
+        return node;
+    }
+
+    private int stripeIndex() {
+        if( stripes == 1 ) return 0;
+
+        return Math.floorMod( thread.get(), stripes );
+    }
+
+    /**
+     * @return current buffer, the caller must {@link Buffer#exit(int)} it
+     */
+    private Buffer enter( int stripe ) {
+        while( true ) {
+            var current = buffer;
+            current.enter( stripe );
+            if( current == buffer ) return current;
+
+            current.exit( stripe );
+        }
+    }
+
     @Override
     public void run() {
         sync();
@@ -83,30 +197,140 @@ public class StatsDBNode extends IStatsDB implements Runnable, Closeable {
 
     @Override
     public synchronized void removeAll() {
-        nodes.clear();
+        buffer = new Buffer( stripes );
+        retry.clear();
     }
 
     @Override
     protected <V extends Node.Value<V>> void update( String[] keys, Consumer<V> update ) {
-        nodes.compute( new NodeId( keys ), ( nid, n ) -> {
-            Node newNode = n;
-            if( newNode == null ) newNode = new Node( schema.get( keys.length - 1 ).newInstance() );
-            newNode.updateValue( update );
+        var stripe = stripeIndex();
+        var current = enter( stripe );
+        try {
+            current.stripes[stripe].compute( new NodeId( keys ), ( nid, n ) -> {
+                Node newNode = n;
+                if( newNode == null ) newNode = new Node( schema.get( keys.length - 1 ).newInstance() );
+                newNode.updateValue( update );
 
-            return newNode;
-        } );
+                return newNode;
+            } );
+        } finally {
+            current.exit( stripe );
+        }
+    }
+
+    @Override
+    protected <V extends Node.Value<V>> NodeHandle<V> bind( String... keys ) {
+        return new BoundNode<>( new NodeId( keys ) );
     }
 
     @Override
     @SuppressWarnings( "unchecked" )
     public <V extends Node.Value<V>> V get( String... key ) {
-        var node = nodes.get( new NodeId( key ) );
-        return node != null ? ( V ) node.v : null;
+        var nodeId = new NodeId( key );
+        var current = buffer;
+
+        if( stripes == 1 ) {
+            var node = current.stripes[0].get( nodeId );
+            return node != null ? ( V ) node.v : null;
+        }
+
+        Node.Value value = null;
+        for( var stripe : current.stripes ) {
+            var node = stripe.get( nodeId );
+            if( node == null ) continue;
+
+            if( value == null ) value = schema.get( key.length - 1 ).newInstance();
+            synchronized( node ) {
+                value.merge( node.v );
+            }
+        }
+
+        return ( V ) value;
     }
 
     @Override
     public void close() {
         log.info( "close" );
         sync();
+        Metrics.globalRegistry.remove( pendingGauge );
+    }
+
+    /**
+     * Partial nodes per stripe, a writer thread always updates the same stripe. The writers counters let sync wait until
+     * nobody writes to the buffer it has just replaced.
+     */
+    private static final class Buffer {
+        /**
+         * one counter per cache line
+         */
+        private static final int PADDING = 16;
+
+        private final ConcurrentHashMap<NodeId, Node>[] stripes;
+        private final AtomicIntegerArray writers;
+
+        @SuppressWarnings( "unchecked" )
+        private Buffer( int stripes ) {
+            this.stripes = new ConcurrentHashMap[stripes];
+            for( var i = 0; i < stripes; i++ ) this.stripes[i] = new ConcurrentHashMap<>();
+            this.writers = new AtomicIntegerArray( stripes * PADDING );
+        }
+
+        private void enter( int stripe ) {
+            writers.incrementAndGet( stripe * PADDING );
+        }
+
+        private void exit( int stripe ) {
+            writers.decrementAndGet( stripe * PADDING );
+        }
+
+        private void awaitWriters() {
+            for( var i = 0; i < stripes.length; i++ ) {
+                var spins = 0;
+                while( writers.get( i * PADDING ) != 0 ) {
+                    if( ++spins < 100 ) Thread.onSpinWait();
+                    else Thread.yield();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the node resolved in the current buffer per stripe, after sync the next update resolves it again.
+     */
+    private final class BoundNode<V extends Node.Value<V>> implements NodeHandle<V> {
+        private final NodeId nodeId;
+        private final AtomicReferenceArray<Resolved> resolved = new AtomicReferenceArray<>( stripes );
+
+        private BoundNode( NodeId nodeId ) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public void update( Consumer<V> update ) {
+            var stripe = stripeIndex();
+            var current = enter( stripe );
+            try {
+                var r = resolved.get( stripe );
+                if( r == null || r.buffer != current ) {
+                    r = new Resolved( current, current.stripes[stripe].computeIfAbsent( nodeId,
+                        nid -> new Node( schema.get( nid.size() - 1 ).newInstance() ) ) );
+                    resolved.set( stripe, r );
+                }
+
+                r.node.updateValue( update );
+            } finally {
+                current.exit( stripe );
+            }
+        }
+    }
+
+    private static final class Resolved {
+        private final Buffer buffer;
+        private final Node node;
+
+        private Resolved( Buffer buffer, Node node ) {
+            this.buffer = buffer;
+            this.node = node;
+        }
     }
 }
@@ -1,5 +1,7 @@
 package oap.statsdb;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
 import oap.io.content.ContentWriter;
 import oap.message.MessageSender;
 
@@ -10,13 +12,28 @@ public class StatsDBTransportMessage implements StatsDBTransport {
     public static final byte MESSAGE_TYPE = 10;
 
     private final MessageSender sender;
+    private final SyncCodec codec;
+    private final DistributionSummary payload = DistributionSummary.builder( "statsdb.node.sync.bytes" )
+        .baseUnit( "bytes" )
+        .register( Metrics.globalRegistry );
 
     public StatsDBTransportMessage( MessageSender sender ) {
+        this( sender, SyncCodec.JSON );
+    }
+
+    /**
+     * @param codec {@link BinarySyncCodec} requires a master that understands it, the listener accepts both formats
+     */
+    public StatsDBTransportMessage( MessageSender sender, SyncCodec codec ) {
         this.sender = sender;
+        this.codec = codec;
     }
 
     @Override
     public void sendAsync( RemoteStatsDB.Sync sync ) {
-        sender.send( MESSAGE_TYPE, sync, ContentWriter.ofJson() );
+        var data = codec.encode( sync );
+        payload.record( data.length );
+
+        sender.send( MESSAGE_TYPE, data, ContentWriter.ofBytes() );
     }
 }
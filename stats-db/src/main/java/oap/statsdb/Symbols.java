@@ -0,0 +1,19 @@
+package oap.statsdb;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Canonical instances of the tree keys. Every sync brings its own copies of the same keys, the master keeps one
+ * instance per key with its hash code already computed. The table is weak, keys of evicted nodes go away with them.
+ */
+public final class Symbols {
+    private static final Interner<String> keys = Interners.newWeakInterner();
+
+    private Symbols() {
+    }
+
+    public static String intern( String key ) {
+        return keys.intern( key );
+    }
+}
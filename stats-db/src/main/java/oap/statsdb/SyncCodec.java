@@ -0,0 +1,78 @@
+package oap.statsdb;
+
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.SneakyThrows;
+import oap.json.Binder;
+import oap.reflect.TypeRef;
+
+import java.io.ByteArrayInputStream;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Wire format of {@link RemoteStatsDB.Sync} between {@link StatsDBTransportMessage} and the master listener.
+ *
+ * @see BinarySyncCodec
+ */
+public interface SyncCodec {
+    SyncCodec JSON = new SyncCodec() {
+        @Override
+        public byte[] encode( RemoteStatsDB.Sync sync ) {
+            return Binder.json.marshal( sync ).getBytes( UTF_8 );
+        }
+
+        @Override
+        public RemoteStatsDB.Sync decode( byte[] data ) {
+            return Binder.json.unmarshal( RemoteStatsDB.Sync.class, new ByteArrayInputStream( data ) );
+        }
+
+        @Override
+        @SneakyThrows
+        public String decode( byte[] data, BiConsumer<NodeId, Node> consumer ) {
+            var reader = Binder.json.readerFor( new TypeRef<RemoteStatsDB.Sync.NodeIdNode>() {
+            } );
+
+            String id = null;
+
+            try( var parser = reader.createParser( data ) ) {
+                if( parser.nextToken() != JsonToken.START_OBJECT )
+                    throw new IllegalArgumentException( "sync object expected, got " + parser.currentToken() );
+
+                while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+                    var field = parser.getCurrentName();
+                    var token = parser.nextToken();
+
+                    if( "data".equals( field ) && token == JsonToken.START_ARRAY ) {
+                        while( parser.nextToken() == JsonToken.START_OBJECT ) {
+                            RemoteStatsDB.Sync.NodeIdNode nodeIdNode = reader.readValue( parser );
+                            consumer.accept( nodeIdNode.nodeId, nodeIdNode.node );
+                        }
+                    } else if( "id".equals( field ) ) {
+                        id = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+
+            return id;
+        }
+    };
+
+    byte[] encode( RemoteStatsDB.Sync sync );
+
+    RemoteStatsDB.Sync decode( byte[] data );
+
+    /**
+     * Streaming decode, nodes are passed to the consumer one by one without building the {@link RemoteStatsDB.Sync}.
+     *
+     * @return sync id
+     */
+    default String decode( byte[] data, BiConsumer<NodeId, Node> consumer ) {
+        var sync = decode( data );
+        for( var nodeIdNode : sync.data ) consumer.accept( nodeIdNode.nodeId, nodeIdNode.node );
+
+        return sync.id;
+    }
+}
@@ -0,0 +1,62 @@
+package oap.statsdb;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+
+/**
+ * The k greatest elements, a min-heap of at most k elements: O(n log k) time and O(k) memory. Partial heaps of a
+ * parallel stream are merged into one.
+ */
+final class TopK<T> {
+    /**
+     * the heap grows on demand, a large k of a query over a few nodes allocates nothing up front
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int k;
+    private final Comparator<? super T> comparator;
+    private final PriorityQueue<T> heap;
+
+    private TopK( int k, Comparator<? super T> comparator ) {
+        this.k = k;
+        this.comparator = comparator;
+        this.heap = new PriorityQueue<>( Math.min( k, INITIAL_CAPACITY ), comparator );
+    }
+
+    /**
+     * @return greatest first
+     */
+    static <T> Collector<T, ?, List<T>> collector( int k, Comparator<? super T> comparator ) {
+        Preconditions.checkArgument( k > 0, "k must be positive" );
+
+        return Collector.of( () -> new TopK<T>( k, comparator ), TopK::add, TopK::merge, TopK::result, Collector.Characteristics.UNORDERED );
+    }
+
+    private void add( T element ) {
+        if( heap.size() < k ) heap.add( element );
+        else if( comparator.compare( element, heap.peek() ) > 0 ) {
+            heap.poll();
+            heap.add( element );
+        }
+    }
+
+    private TopK<T> merge( TopK<T> other ) {
+        for( var element : other.heap ) add( element );
+
+        return this;
+    }
+
+    private List<T> result() {
+        var result = new ArrayList<T>( heap.size() );
+        while( !heap.isEmpty() ) result.add( heap.poll() );
+        Collections.reverse( result );
+
+        return result;
+    }
+}
@@ -0,0 +1,18 @@
+package oap.statsdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Binary form of a {@link Node.Value}, registered per schema level with {@link NodeSchema#nc(String, Class, ValueSerializer)}.
+ * Levels without a serializer fall back to the json form of the value.
+ *
+ * @see Varints
+ */
+public interface ValueSerializer<T extends Node.Value> extends Serializable {
+    void write( DataOutput out, T value ) throws IOException;
+
+    T read( DataInput in ) throws IOException;
+}
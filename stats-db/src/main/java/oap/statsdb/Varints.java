@@ -0,0 +1,90 @@
+package oap.statsdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * LEB128 variable length integers and length prefixed utf-8 strings.
+ */
+public final class Varints {
+    private Varints() {
+    }
+
+    public static void writeVarInt( DataOutput out, int value ) throws IOException {
+        while( ( value & ~0x7F ) != 0 ) {
+            out.writeByte( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        out.writeByte( value );
+    }
+
+    public static int readVarInt( DataInput in ) throws IOException {
+        var value = 0;
+        for( var shift = 0; shift < 32; shift += 7 ) {
+            var b = in.readByte();
+            value |= ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) return value;
+        }
+
+        throw new IOException( "malformed varint" );
+    }
+
+    public static void writeVarLong( DataOutput out, long value ) throws IOException {
+        while( ( value & ~0x7FL ) != 0 ) {
+            out.writeByte( ( int ) ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        out.writeByte( ( int ) value );
+    }
+
+    public static long readVarLong( DataInput in ) throws IOException {
+        var value = 0L;
+        for( var shift = 0; shift < 64; shift += 7 ) {
+            var b = in.readByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) return value;
+        }
+
+        throw new IOException( "malformed varlong" );
+    }
+
+    /**
+     * zigzag encoded, small negative values stay short
+     */
+    public static void writeSignedVarLong( DataOutput out, long value ) throws IOException {
+        writeVarLong( out, ( value << 1 ) ^ ( value >> 63 ) );
+    }
+
+    public static long readSignedVarLong( DataInput in ) throws IOException {
+        var value = readVarLong( in );
+
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+
+    /**
+     * {@code null} is written as length 0, any other string as length + 1
+     */
+    public static void writeString( DataOutput out, String value ) throws IOException {
+        if( value == null ) {
+            writeVarInt( out, 0 );
+            return;
+        }
+
+        var bytes = value.getBytes( UTF_8 );
+        writeVarInt( out, bytes.length + 1 );
+        out.write( bytes );
+    }
+
+    public static String readString( DataInput in ) throws IOException {
+        var length = readVarInt( in );
+        if( length == 0 ) return null;
+
+        var bytes = new byte[length - 1];
+        in.readFully( bytes );
+
+        return new String( bytes, UTF_8 );
+    }
+}